@@ -1,10 +1,13 @@
 package com.segment.analytics.android.integrations.amplitude;
 
+import android.os.Handler;
+import android.os.Looper;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.amplitude.api.Amplitude;
 import com.amplitude.api.AmplitudeClient;
+import com.amplitude.api.Constants;
 import com.amplitude.api.Identify;
 import com.amplitude.api.Revenue;
 import com.segment.analytics.Analytics;
@@ -22,12 +25,15 @@ import com.segment.analytics.integrations.TrackPayload;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.segment.analytics.internal.Utils.isNullOrEmpty;
 
@@ -55,19 +61,103 @@ public class AmplitudeIntegration extends Integration<AmplitudeClient> {
       };
   private static final String AMPLITUDE_KEY = "Amplitude";
   private static final String VIEWED_EVENT_FORMAT = "Viewed %s Screen";
+  private static final int DEFAULT_INGEST_CHUNK_SIZE = 500;
+  /** Chunks of {@link #ingest} allowed in the buffer at once: one being logged, one waiting. */
+  private static final int MAX_QUEUED_INGEST_CHUNKS = 2;
+  /** Rough cost of an operation waiting in the buffer, for the memory budget. */
+  private static final int BUFFERED_OPERATION_BYTES = 512;
 
   private final AmplitudeClient amplitude;
+  private final InstanceRoute[] routes;
+  /** Whether the additional instances were given the default instance's device id. */
+  private volatile boolean deviceIdShared;
   private final Logger logger;
-  // mutable for testing.
-  boolean trackAllPages;
-  boolean trackAllPagesV2;
-  boolean trackCategorizedPages;
-  boolean trackNamedPages;
-  boolean useLogRevenueV2;
-  String groupTypeTrait;
-  String groupValueTrait;
-  Set<String> traitsToIncrement;
-  Set<String> traitsToSetOnce;
+  private final Clock clock;
+  private final MemoryBudget memoryBudget;
+  private final ScreenDebouncer screenDebouncer = new ScreenDebouncer();
+  private final @Nullable MessageIdWindow messageIdWindow;
+  private final @Nullable GroupBatcher groupBatcher;
+  private final long groupBatchWindowMillis;
+  private @Nullable Handler groupBatchHandler;
+  private final @Nullable EventBuffer eventBuffer;
+  /** Whether an upload requested by the memory budget is waiting in the buffer. */
+  private final AtomicBoolean trimUploadQueued = new AtomicBoolean();
+  /** Shares event names and property keys among buffered events; only set with the buffer. */
+  private final @Nullable StringPool stringPool;
+  /** Whether buffered events hold their properties encoded by {@link EventCodec}. */
+  private final boolean encodeBufferedEvents;
+  /** Journals buffered events so they survive the process; only set with the buffer. */
+  private final @Nullable EventJournal journal;
+  /** Only used by the thread that maps payloads to SDK calls. */
+  private final RevenueFields revenueFields = new RevenueFields();
+  /** Only used by the thread that maps payloads to SDK calls. */
+  final GroupsCache groupsCache = new GroupsCache(16);
+  /** Estimated bytes logged since the last upload; only used by the same thread. */
+  private long bytesSinceUpload;
+  private final @Nullable UploadTuner uploadTuner;
+  private final ConnectivitySource connectivity;
+  /** True if an upload was requested while offline; only used by the same thread. */
+  private boolean uploadPending;
+  private final int foregroundUploadThreshold;
+  private final int foregroundUploadPeriodMillis;
+  private volatile SuperProperties superProperties = SuperProperties.EMPTY;
+  /** True while a chunk of {@link #ingest} is logged; only used by the same thread. */
+  private boolean ingesting;
+  private final Semaphore ingestPermits = new Semaphore(MAX_QUEUED_INGEST_CHUNKS);
+  volatile AmplitudeSettings settings;
+
+  private final GroupBatcher.Sink groupSink =
+      new GroupBatcher.Sink() {
+        @Override
+        public void setGroup(String groupType, Object groupName) {
+          amplitude.setGroup(groupType, groupName);
+          logger.verbose("AmplitudeClient.getInstance().setGroup(%s, %s);", groupType, groupName);
+          for (InstanceRoute route : routes) {
+            route.client.setGroup(groupType, groupName);
+          }
+        }
+
+        @Override
+        public void groupIdentify(String groupType, String groupName, Identify groupIdentify) {
+          amplitude.groupIdentify(groupType, groupName, groupIdentify);
+          for (InstanceRoute route : routes) {
+            route.client.groupIdentify(groupType, groupName, groupIdentify);
+          }
+        }
+      };
+
+  private final Runnable groupFlush =
+      new Runnable() {
+        @Override
+        public void run() {
+          runInOrder(
+              new Runnable() {
+                @Override
+                public void run() {
+                  flushGroups();
+                }
+              });
+        }
+      };
+
+  /**
+   * Told when the buffer enabled by the {@code eventBufferCapacity} setting fills up and drains, so
+   * the app can slow down the events it records.
+   */
+  public interface BackpressureListener {
+
+    /**
+     * Called on the thread recording an event when the number of buffered operations reaches the
+     * high watermark. Events are dropped while the buffer is full.
+     */
+    void onHighWatermark(int depth, long droppedEvents);
+
+    /**
+     * Called on the buffer's thread when the number of buffered operations is back down to the low
+     * watermark after reaching the high watermark.
+     */
+    void onLowWatermark(int depth, long droppedEvents);
+  }
 
   // Using PowerMockito fails with https://cloudup.com/c5JPuvmTCaH. So we introduce a provider
   // abstraction to mock what AmplitudeClient.getInstance() returns.
@@ -75,28 +165,92 @@ public class AmplitudeIntegration extends Integration<AmplitudeClient> {
 
     AmplitudeClient get();
 
+    AmplitudeClient get(String instanceName);
+
     Provider REAL =
         new Provider() {
           @Override
           public AmplitudeClient get() {
             return Amplitude.getInstance();
           }
+
+          @Override
+          public AmplitudeClient get(String instanceName) {
+            return Amplitude.getInstance(instanceName);
+          }
         };
   }
 
   AmplitudeIntegration(Provider provider, Analytics analytics, ValueMap settings) {
+    this(provider, Clock.REAL, analytics, settings);
+  }
+
+  AmplitudeIntegration(Provider provider, Clock clock, Analytics analytics, ValueMap settings) {
+    this(
+        provider, clock, new NetworkConnectivity(analytics.getApplication()), analytics, settings);
+  }
+
+  AmplitudeIntegration(
+      Provider provider,
+      Clock clock,
+      ConnectivitySource connectivity,
+      Analytics analytics,
+      ValueMap settings) {
     amplitude = provider.get();
-    trackAllPages = settings.getBoolean("trackAllPages", false);
-    trackAllPagesV2 = settings.getBoolean("trackAllPagesV2", true);
-    trackCategorizedPages = settings.getBoolean("trackCategorizedPages", false);
-    trackNamedPages = settings.getBoolean("trackNamedPages", false);
-    useLogRevenueV2 = settings.getBoolean("useLogRevenueV2", false);
-    groupTypeTrait = settings.getString("groupTypeTrait");
-    groupValueTrait = settings.getString("groupTypeValue");
-    traitsToIncrement = getStringSet(settings, "traitsToIncrement");
-    traitsToSetOnce = getStringSet(settings, "traitsToSetOnce");
+    this.clock = clock;
+    this.connectivity = connectivity;
+    this.settings = new AmplitudeSettings(settings);
     logger = analytics.logger(AMPLITUDE_KEY);
 
+    long budgetBytes = settings.getLong("memoryBudgetBytes", MemoryBudget.DEFAULT_BUDGET_BYTES);
+    memoryBudget = new MemoryBudget(budgetBytes);
+    analytics.getApplication().registerComponentCallbacks(memoryBudget);
+    memoryBudget.register(groupsCache);
+
+    groupBatchWindowMillis = settings.getLong("groupBatchWindowMillis", 0);
+    groupBatcher = groupBatchWindowMillis > 0 ? new GroupBatcher() : null;
+
+    int bufferCapacity = settings.getInt("eventBufferCapacity", 0);
+    if (bufferCapacity > 0) {
+      eventBuffer =
+          new EventBuffer(
+              bufferCapacity,
+              settings.getInt("eventBufferHighWatermark", bufferCapacity * 3 / 4),
+              settings.getInt("eventBufferLowWatermark", bufferCapacity / 4),
+              logger);
+      memoryBudget.register(bufferTrimmable());
+      stringPool = new StringPool(settings.getInt("stringPoolSize", StringPool.DEFAULT_MAX_SIZE));
+      memoryBudget.register(stringPool);
+      encodeBufferedEvents = settings.getBoolean("encodeBufferedEvents", false);
+      journal =
+          settings.getBoolean("journalEvents", false)
+              ? new EventJournal(
+                  analytics.getApplication(),
+                  settings.getInt("journalCapacityBytes", EventJournal.DEFAULT_CAPACITY_BYTES),
+                  logger)
+              : null;
+    } else {
+      eventBuffer = null;
+      stringPool = null;
+      encodeBufferedEvents = false;
+      journal = null;
+    }
+
+    int dedupeWindow = settings.getInt("messageIdDedupeWindow", 0);
+    // The window can only be dropped as a whole, so it is sized to the share of the budget it is
+    // sure to keep next to the other caches, rather than be cleared whenever they fill up or the
+    // app goes to the background.
+    long windowShare = memoryBudget.shareOfNext();
+    while (dedupeWindow > 0 && MessageIdWindow.bytesFor(dedupeWindow) > windowShare) {
+      dedupeWindow /= 2;
+    }
+    if (dedupeWindow > 0) {
+      messageIdWindow = new MessageIdWindow(dedupeWindow);
+      memoryBudget.register(messageIdWindow);
+    } else {
+      messageIdWindow = null;
+    }
+
     String apiKey = settings.getString("apiKey");
     amplitude.initialize(analytics.getApplication(), apiKey);
     logger.verbose("AmplitudeClient.getInstance().initialize(context, %s);", apiKey);
@@ -104,36 +258,351 @@ public class AmplitudeIntegration extends Integration<AmplitudeClient> {
     amplitude.enableForegroundTracking(analytics.getApplication());
     logger.verbose("AmplitudeClient.getInstance().enableForegroundTracking(context);");
 
-    boolean trackSessionEvents = settings.getBoolean("trackSessionEvents", false);
-    amplitude.trackSessionEvents(trackSessionEvents);
-    logger.verbose("AmplitudeClient.getInstance().trackSessionEvents(%s);", trackSessionEvents);
+    configureClient(amplitude, settings);
+    logger.verbose(
+        "AmplitudeClient.getInstance().trackSessionEvents(%s);",
+        settings.getBoolean("trackSessionEvents", false));
+
+    uploadTuner = createUploadTuner(settings);
+
+    routes = createRoutes(provider, analytics, settings);
+    shareDeviceId();
 
-    boolean enableLocationListening = settings.getBoolean("enableLocationListening", true);
-    if (!enableLocationListening) {
-      amplitude.disableLocationListening();
+    foregroundUploadThreshold = settings.getInt("foregroundEventUploadThreshold", 100);
+    foregroundUploadPeriodMillis = settings.getInt("foregroundEventUploadPeriodMillis", 60 * 1000);
+    if (settings.getBoolean("lifecycleUploads", false)) {
+      enableLifecycleUploads(analytics);
     }
 
-    boolean useAdvertisingIdForDeviceId = settings.getBoolean("useAdvertisingIdForDeviceId", false);
-    if (useAdvertisingIdForDeviceId) {
-      amplitude.useAdvertisingIdForDeviceId();
+    if (journal != null) {
+      // Queued first, so the journal is opened off the caller's thread and events journaled by the
+      // previous process are logged before new ones. Events buffered before then aren't journaled.
+      eventBuffer.offer(
+          new Runnable() {
+            @Override
+            public void run() {
+              replayJournal();
+            }
+          },
+          false);
     }
+
+    connectivity.start(
+        new ConnectivitySource.Listener() {
+          @Override
+          public void onConnectivityChanged(boolean connected) {
+            if (connected) {
+              onReconnected();
+            }
+          }
+        });
   }
 
-  static Set<String> getStringSet(ValueMap valueMap, String key) {
+  /**
+   * Makes the default instance batch more while the app is in the foreground, as set by the {@code
+   * foregroundEventUploadThreshold} and {@code foregroundEventUploadPeriodMillis} settings, and
+   * upload exactly once each time the app goes to the background.
+   */
+  private void enableLifecycleUploads(Analytics analytics) {
+    // The integration uploads on background itself; don't let the SDK upload a second time.
+    amplitude.setFlushEventsOnClose(false);
+    for (InstanceRoute route : routes) {
+      route.client.setFlushEventsOnClose(false);
+    }
+    ForegroundTracker.register(
+        analytics.getApplication(),
+        new ForegroundTracker.Listener() {
+          @Override
+          public void onForeground() {
+            runInOrder(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    setUploadCadence(foregroundUploadThreshold, foregroundUploadPeriodMillis);
+                  }
+                });
+          }
+
+          @Override
+          public void onBackground() {
+            runInOrder(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    uploadOnBackground();
+                  }
+                });
+          }
+        });
+  }
+
+  /**
+   * Runs an operation that isn't triggered by a payload, such as a timer or a system callback, in
+   * order with the payloads: on the buffer's thread if the buffer is enabled, and right away
+   * otherwise.
+   */
+  private void runInOrder(Runnable operation) {
+    if (eventBuffer != null) {
+      eventBuffer.offer(operation, false);
+    } else {
+      operation.run();
+    }
+  }
+
+  /**
+   * Creates the tuner enabled by the {@code adaptiveUploads} setting, which keeps the upload
+   * threshold and period of the default instance between {@code minEventUploadThreshold} and
+   * {@code maxEventUploadThreshold}, and {@code minEventUploadPeriodMillis} and {@code
+   * maxEventUploadPeriodMillis}.
+   */
+  private @Nullable UploadTuner createUploadTuner(ValueMap settings) {
+    if (!settings.getBoolean("adaptiveUploads", false)) {
+      return null;
+    }
     try {
-      //noinspection unchecked
-      List<Object> incrementTraits = (List<Object>) valueMap.get(key);
-      if (incrementTraits == null || incrementTraits.size() == 0) {
-        return Collections.emptySet();
+      return new UploadTuner(
+          settings.getInt("minEventUploadThreshold", 10),
+          settings.getInt("maxEventUploadThreshold", 100),
+          settings.getInt("minEventUploadPeriodMillis", 10 * 1000),
+          settings.getInt("maxEventUploadPeriodMillis", 60 * 1000));
+    } catch (IllegalArgumentException e) {
+      logger.info("Ignoring adaptiveUploads: %s", e.getMessage());
+      return null;
+    }
+  }
+
+  /** Applies the client settings that every Amplitude instance shares. */
+  private static void configureClient(AmplitudeClient client, ValueMap settings) {
+    client.trackSessionEvents(settings.getBoolean("trackSessionEvents", false));
+    if (!settings.getBoolean("enableLocationListening", true)) {
+      client.disableLocationListening();
+    }
+    if (settings.getBoolean("useAdvertisingIdForDeviceId", false)) {
+      client.useAdvertisingIdForDeviceId();
+    }
+  }
+
+  /**
+   * Creates and initializes the additional Amplitude instances listed in the {@code instances}
+   * setting, configured like the default instance. Each entry has a {@code name}, an {@code
+   * apiKey}, an optional {@code events} list restricting which events it receives, and optional
+   * {@code eventUploadThreshold} and {@code eventUploadPeriodMillis} values for its own upload
+   * cadence.
+   */
+  private InstanceRoute[] createRoutes(Provider provider, Analytics analytics, ValueMap settings) {
+    List<ValueMap> instances = settings.getList("instances", ValueMap.class);
+    if (isNullOrEmpty(instances)) {
+      return new InstanceRoute[0];
+    }
+    List<InstanceRoute> routes = new ArrayList<>(instances.size());
+    for (ValueMap instance : instances) {
+      String name = instance.getString("name");
+      String apiKey = instance.getString("apiKey");
+      if (isNullOrEmpty(name) || isNullOrEmpty(apiKey)) {
+        logger.info("Ignoring Amplitude instance without a name or apiKey: %s", instance);
+        continue;
       }
-      Set<String> stringSet = new HashSet<>(incrementTraits.size());
-      for (int i = 0; i < incrementTraits.size(); i++) {
-        stringSet.add((String) incrementTraits.get(i));
+      AmplitudeClient client = provider.get(name);
+      client.initialize(analytics.getApplication(), apiKey);
+      client.enableForegroundTracking(analytics.getApplication());
+      configureClient(client, settings);
+      logger.verbose("Amplitude.getInstance(%s).initialize(context, %s);", name, apiKey);
+
+      int uploadThreshold = instance.getInt("eventUploadThreshold", 0);
+      if (uploadThreshold > 0) {
+        client.setEventUploadThreshold(uploadThreshold);
+      }
+      int uploadPeriodMillis = instance.getInt("eventUploadPeriodMillis", 0);
+      if (uploadPeriodMillis > 0) {
+        client.setEventUploadPeriodMillis(uploadPeriodMillis);
+      }
+
+      Set<String> events = null;
+      if (instance.containsKey("events")) {
+        events = AmplitudeSettings.getStringSet(instance, "events");
       }
-      return stringSet;
-    } catch (ClassCastException e) {
-      return Collections.emptySet();
+      routes.add(new InstanceRoute(name, client, events));
     }
+    return routes.toArray(new InstanceRoute[routes.size()]);
+  }
+
+  /**
+   * Replaces the settings that control how payloads are mapped to Amplitude calls (page tracking,
+   * revenue, trait and group options) without re-creating the integration or the Amplitude client.
+   * The new settings are parsed on the calling thread and swapped in atomically, so every payload
+   * is handled entirely with either the old or the new settings. Settings that configure the
+   * Amplitude client itself, such as {@code apiKey}, only take effect when the integration is
+   * created.
+   */
+  public void updateSettings(ValueMap settings) {
+    this.settings = new AmplitudeSettings(settings);
+    logger.verbose("Updated settings.");
+  }
+
+  /**
+   * Number of track calls dropped because their message id was already seen. Always 0 unless the
+   * {@code messageIdDedupeWindow} setting is enabled.
+   */
+  public long duplicateMessagesSuppressed() {
+    return messageIdWindow == null ? 0 : messageIdWindow.suppressedCount();
+  }
+
+  /**
+   * Sets the listener told about backpressure in the buffer enabled by the {@code
+   * eventBufferCapacity} setting. Has no effect if the buffer isn't enabled.
+   */
+  public void setBackpressureListener(@Nullable BackpressureListener listener) {
+    if (eventBuffer != null) {
+      eventBuffer.setListener(listener);
+    }
+  }
+
+  /**
+   * Sets properties to add to every event logged after this call, such as the app build or
+   * experiment arms. They are converted to JSON here, once, rather than with every event. An
+   * event's own properties win over super-properties with the same key. Pass {@code null} or an
+   * empty map to stop adding them.
+   */
+  public void setSuperProperties(@Nullable Map<String, ?> properties) {
+    final SuperProperties superProperties =
+        isNullOrEmpty(properties) ? SuperProperties.EMPTY : SuperProperties.of(properties);
+    // Swapped in order with the payloads, so events recorded before this call don't get them.
+    runInOrder(
+        new Runnable() {
+          @Override
+          public void run() {
+            AmplitudeIntegration.this.superProperties = superProperties;
+          }
+        });
+  }
+
+  /** Told how long each chunk of an {@link #ingest} took. */
+  public interface IngestListener {
+
+    /**
+     * Called once {@code events} events of a chunk were handed to Amplitude and their upload was
+     * requested, {@code elapsedNanos} after the chunk started.
+     */
+    void onChunk(int events, long elapsedNanos);
+  }
+
+  /**
+   * Logs a backlog of track payloads in chunks of 500.
+   *
+   * @see #ingest(Iterator, int, IngestListener)
+   */
+  public void ingest(List<TrackPayload> payloads) {
+    ingest(payloads.iterator(), DEFAULT_INGEST_CHUNK_SIZE, null);
+  }
+
+  /**
+   * Logs a backlog of track payloads, such as stored events being replayed or migrated, with the
+   * same mapping as {@link #track} but without its per-call overhead.
+   *
+   * <p>The payloads are logged {@code chunkSize} at a time, and each chunk ends with one upload
+   * request, deferred like any other while the device is offline. The integration requests no
+   * other upload while a chunk is logged, but the Amplitude SDK saves the chunk's events on its own
+   * thread and still uploads whenever its {@code eventUploadThreshold} is reached.
+   *
+   * <p>The chunks are logged on the buffer's thread, in order with the payloads around them, so
+   * the {@code eventBufferCapacity} setting must be set. The payloads are read as the chunks are
+   * logged: this call blocks while two chunks wait in the buffer, so only those are held in
+   * memory. Call it from a background thread other than the listener's. If the calling thread is
+   * interrupted, the rest of the payloads are left unread.
+   *
+   * @throws IllegalStateException if the event buffer isn't enabled.
+   */
+  public void ingest(
+      Iterator<TrackPayload> payloads, int chunkSize, final @Nullable IngestListener listener) {
+    if (chunkSize <= 0) {
+      throw new IllegalArgumentException("chunkSize <= 0: " + chunkSize);
+    }
+    if (eventBuffer == null) {
+      throw new IllegalStateException("ingest needs the event buffer; set eventBufferCapacity.");
+    }
+    final AmplitudeSettings settings = this.settings;
+    List<BufferedEvent> chunk = new ArrayList<>(chunkSize);
+    while (payloads.hasNext()) {
+      TrackPayload payload = payloads.next();
+      if (messageIdWindow != null && messageIdWindow.isDuplicate(payload.messageId())) {
+        continue;
+      }
+      chunk.add(
+          BufferedEvent.track(
+              payload,
+              AMPLITUDE_KEY,
+              timestamp(payload, settings),
+              stringPool,
+              encodeBufferedEvents));
+      if (chunk.size() == chunkSize) {
+        if (!offerChunk(chunk, settings, listener)) {
+          return;
+        }
+        chunk = new ArrayList<>(chunkSize);
+      }
+    }
+    if (!chunk.isEmpty()) {
+      offerChunk(chunk, settings, listener);
+    }
+  }
+
+  /**
+   * Queues a chunk once fewer than {@link #MAX_QUEUED_INGEST_CHUNKS} are queued, and returns false
+   * if the calling thread was interrupted while it waited.
+   */
+  private boolean offerChunk(
+      final List<BufferedEvent> chunk,
+      final AmplitudeSettings settings,
+      final @Nullable IngestListener listener) {
+    try {
+      ingestPermits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    eventBuffer.offer(
+        new Runnable() {
+          @Override
+          public void run() {
+            try {
+              ingestChunk(chunk, settings, listener);
+            } finally {
+              ingestPermits.release();
+            }
+          }
+        },
+        false);
+    return true;
+  }
+
+  private void ingestChunk(
+      List<BufferedEvent> chunk, AmplitudeSettings settings, @Nullable IngestListener listener) {
+    long start = System.nanoTime();
+    ingesting = true;
+    try {
+      for (int i = 0; i < chunk.size(); i++) {
+        BufferedEvent event = chunk.get(i);
+        applyTrack(event.name, event.properties(), event.options, event.timestamp, settings);
+      }
+    } finally {
+      ingesting = false;
+      uploadEvents();
+    }
+    long elapsedNanos = System.nanoTime() - start;
+    logger.verbose("Ingested %s events in %s ms.", chunk.size(), elapsedNanos / 1000000);
+    if (listener != null) {
+      listener.onChunk(chunk.size(), elapsedNanos);
+    }
+  }
+
+  /** Number of operations waiting in the buffer, or 0 if it isn't enabled. */
+  public int bufferedOperations() {
+    return eventBuffer == null ? 0 : eventBuffer.depth();
+  }
+
+  /** Number of events dropped because the buffer was full, or 0 if it isn't enabled. */
+  public long droppedEvents() {
+    return eventBuffer == null ? 0 : eventBuffer.dropped();
   }
 
   @Override
@@ -142,23 +611,50 @@ public class AmplitudeIntegration extends Integration<AmplitudeClient> {
   }
 
   @Override
-  public void identify(IdentifyPayload identify) {
+  public void identify(final IdentifyPayload identify) {
     super.identify(identify);
+    if (eventBuffer != null) {
+      eventBuffer.offer(
+          new Runnable() {
+            @Override
+            public void run() {
+              applyIdentify(identify);
+            }
+          },
+          false);
+      return;
+    }
+    applyIdentify(identify);
+  }
+
+  private void applyIdentify(IdentifyPayload identify) {
+    flushGroups();
+    AmplitudeSettings settings = this.settings;
 
     String userId = identify.userId();
     amplitude.setUserId(userId);
     logger.verbose("AmplitudeClient.getInstance().setUserId(%s);", userId);
+    shareDeviceId();
+    for (InstanceRoute route : routes) {
+      route.client.setUserId(userId);
+    }
 
     Traits traits = identify.traits();
-    if (!isNullOrEmpty(traitsToIncrement) || !isNullOrEmpty(traitsToSetOnce)) {
-      handleTraits(traits);
+    if (settings.hasTraitOperations) {
+      handleTraits(traits, settings);
     } else {
       JSONObject userTraits = traits.toJsonObject();
       amplitude.setUserProperties(userTraits);
       logger.verbose("AmplitudeClient.getInstance().setUserProperties(%s);", userTraits);
+      for (InstanceRoute route : routes) {
+        route.client.setUserProperties(userTraits);
+      }
+    }
+    if (settings.uploadThresholdBytes > 0) {
+      countUploadBytes(PayloadSize.estimate(traits), settings);
     }
 
-    JSONObject groups = groups(identify);
+    JSONObject groups = cachedGroups(identify);
     if (groups == null) {
       return;
     }
@@ -168,20 +664,23 @@ public class AmplitudeIntegration extends Integration<AmplitudeClient> {
       try {
         Object value = groups.get(key);
         amplitude.setGroup(key, value);
+        for (InstanceRoute route : routes) {
+          route.client.setGroup(key, value);
+        }
       } catch (JSONException e) {
         logger.error(e, "error reading %s from %s", key, groups);
       }
     }
   }
 
-  private void handleTraits(Traits traits) {
+  private void handleTraits(Traits traits, AmplitudeSettings settings) {
     Identify identify = new Identify();
     for (Map.Entry<String, Object> entry : traits.entrySet()) {
       String key = entry.getKey();
       Object value = entry.getValue();
-      if (traitsToIncrement.contains(key)) {
+      if (settings.traitsToIncrement.contains(key)) {
         incrementTrait(key, value, identify);
-      } else if (traitsToSetOnce.contains(key)) {
+      } else if (settings.traitsToSetOnce.contains(key)) {
         setOnce(key, value, identify);
       } else {
         setTrait(key, value, identify);
@@ -189,6 +688,9 @@ public class AmplitudeIntegration extends Integration<AmplitudeClient> {
     }
     amplitude.identify(identify);
     logger.verbose("Amplitude.getInstance().identify(identify)");
+    for (InstanceRoute route : routes) {
+      route.client.identify(identify);
+    }
   }
 
   private void incrementTrait(String key, Object value, Identify identify) {
@@ -264,71 +766,350 @@ public class AmplitudeIntegration extends Integration<AmplitudeClient> {
   }
 
   @Override
-  public void screen(ScreenPayload screen) {
+  public void screen(final ScreenPayload screen) {
     super.screen(screen);
-    if (trackAllPagesV2) {
+    final AmplitudeSettings settings = this.settings;
+    if (settings.screenDebounceMillis > 0
+        && screenDebouncer.isRepeat(
+            screen.name(),
+            screen.category(),
+            clock.currentTimeMillis(),
+            settings.screenDebounceMillis)) {
+      logger.verbose("Dropping repeated screen %s.", screen.name());
+      return;
+    }
+
+    if (eventBuffer != null) {
+      // Hold on to what the mapping needs rather than the payload and its context.
+      BufferedEvent event =
+          BufferedEvent.screen(
+              screen, timestamp(screen, settings), stringPool, encodeBufferedEvents);
+      if (!offerEvent(event, settings)) {
+        logger.verbose("Buffer full, dropping screen %s.", screen.name());
+      }
+      return;
+    }
+    applyScreen(
+        screen.name(),
+        screen.category(),
+        screen.properties(),
+        timestamp(screen, settings),
+        settings);
+  }
+
+  private void applyScreen(
+      @Nullable String name,
+      @Nullable String category,
+      Properties screenProperties,
+      long timestamp,
+      AmplitudeSettings settings) {
+    flushGroups();
+    if (settings.trackAllPagesV2) {
       Properties properties = new Properties();
-      properties.putAll(screen.properties());
-      properties.put("name", screen.name());
-      event("Loaded a Screen", properties, null, null);
+      properties.putAll(screenProperties);
+      properties.put("name", name);
+      event("Loaded a Screen", properties, null, null, timestamp, settings);
       return;
     }
 
-    if (trackAllPages) {
-      event(String.format(VIEWED_EVENT_FORMAT, screen.event()), screen.properties(), null, null);
-    } else if (trackCategorizedPages && !isNullOrEmpty(screen.category())) {
-      event(String.format(VIEWED_EVENT_FORMAT, screen.category()), screen.properties(), null, null);
-    } else if (trackNamedPages && !isNullOrEmpty(screen.name())) {
-      event(String.format(VIEWED_EVENT_FORMAT, screen.name()), screen.properties(), null, null);
+    if (settings.trackAllPages) {
+      // Same as ScreenPayload.event().
+      String event = isNullOrEmpty(name) ? category : name;
+      event(
+          String.format(VIEWED_EVENT_FORMAT, event),
+          screenProperties,
+          null,
+          null,
+          timestamp,
+          settings);
+    } else if (settings.trackCategorizedPages && !isNullOrEmpty(category)) {
+      event(
+          String.format(VIEWED_EVENT_FORMAT, category),
+          screenProperties,
+          null,
+          null,
+          timestamp,
+          settings);
+    } else if (settings.trackNamedPages && !isNullOrEmpty(name)) {
+      event(
+          String.format(VIEWED_EVENT_FORMAT, name),
+          screenProperties,
+          null,
+          null,
+          timestamp,
+          settings);
     }
   }
 
   @Override
-  public void track(TrackPayload track) {
+  public void track(final TrackPayload track) {
     super.track(track);
 
-    JSONObject groups = groups(track);
-    Map<String, Object> eventOptions = track.integrations().getValueMap(AMPLITUDE_KEY);
-    event(track.event(), track.properties(), eventOptions, groups);
+    if (messageIdWindow != null && messageIdWindow.isDuplicate(track.messageId())) {
+      logger.verbose("Dropping duplicate track %s (%s).", track.event(), track.messageId());
+      return;
+    }
+
+    final AmplitudeSettings settings = this.settings;
+    if (eventBuffer != null) {
+      // Hold on to what the mapping needs rather than the payload and its context.
+      BufferedEvent event =
+          BufferedEvent.track(
+              track,
+              AMPLITUDE_KEY,
+              timestamp(track, settings),
+              stringPool,
+              encodeBufferedEvents);
+      if (!offerEvent(event, settings)) {
+        logger.verbose("Buffer full, dropping track %s.", track.event());
+      }
+      return;
+    }
+    applyTrack(
+        track.event(),
+        track.properties(),
+        amplitudeOptions(track),
+        timestamp(track, settings),
+        settings);
+  }
+
+  /**
+   * Lets the memory budget account for the operations waiting in the buffer. Trimming can't drop
+   * them, so it queues an upload behind them instead: once the buffer drained up to it, what was
+   * waiting has been handed to Amplitude and is uploaded.
+   */
+  private MemoryBudget.Trimmable bufferTrimmable() {
+    return new MemoryBudget.Trimmable() {
+      @Override
+      public long retainedBytes() {
+        return (long) eventBuffer.depth() * BUFFERED_OPERATION_BYTES;
+      }
+
+      @Override
+      public void trimToSize(long maxBytes) {
+        if (!trimUploadQueued.compareAndSet(false, true)) {
+          return;
+        }
+        eventBuffer.offer(
+            new Runnable() {
+              @Override
+              public void run() {
+                trimUploadQueued.set(false);
+                uploadEvents();
+              }
+            },
+            false);
+      }
+    };
+  }
+
+  /**
+   * Queues a track or screen in the buffer, journaling it first if the journal is enabled. Returns
+   * false if the buffer dropped it.
+   */
+  private boolean offerEvent(BufferedEvent event, AmplitudeSettings settings) {
+    if (journal == null) {
+      return eventBuffer.offer(applyLater(event, settings, false), true);
+    }
+    // Held so that no other event is journaled before a dropped one is taken out again.
+    synchronized (journal) {
+      boolean journaled = journal.append(event);
+      boolean buffered = eventBuffer.offer(applyLater(event, settings, journaled), true);
+      if (!buffered && journaled) {
+        journal.discardLast();
+      }
+      return buffered;
+    }
+  }
+
+  private Runnable applyLater(
+      final BufferedEvent event, final AmplitudeSettings settings, final boolean journaled) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        try {
+          applyEvent(event, settings);
+        } finally {
+          if (journaled) {
+            journal.complete();
+          }
+        }
+      }
+    };
+  }
+
+  private void applyEvent(BufferedEvent event, AmplitudeSettings settings) {
+    if (event.screen) {
+      applyScreen(event.name, event.category, event.properties(), event.timestamp, settings);
+    } else {
+      applyTrack(event.name, event.properties(), event.options, event.timestamp, settings);
+    }
+  }
+
+  /** Logs the events the journal held when it was opened, with the current settings. */
+  private void replayJournal() {
+    List<BufferedEvent> events = journal.replay();
+    AmplitudeSettings settings = this.settings;
+    for (int i = 0; i < events.size(); i++) {
+      BufferedEvent event = events.get(i);
+      try {
+        if (event != null) {
+          applyEvent(event, settings);
+        }
+      } finally {
+        journal.complete();
+      }
+    }
+  }
+
+  private void applyTrack(
+      String name,
+      Properties properties,
+      @Nullable ValueMap options,
+      long timestamp,
+      AmplitudeSettings settings) {
+    flushGroups();
+    Map<String, Object> groups = groupOptions(options);
+    event(
+        name,
+        properties,
+        options,
+        groups == null ? null : groupsCache.get(groups),
+        timestamp,
+        settings);
+  }
+
+  /**
+   * Returns the time the payload was created, in milliseconds, if the {@code useSegmentTimestamp}
+   * setting is enabled, and {@code 0} otherwise (Amplitude then stamps the event when it is
+   * logged).
+   */
+  private static long timestamp(BasePayload payload, AmplitudeSettings settings) {
+    if (!settings.useSegmentTimestamp) {
+      return 0;
+    }
+    Date timestamp = payload.timestamp();
+    return timestamp == null ? 0 : timestamp.getTime();
   }
 
   static @Nullable JSONObject groups(BasePayload payload) {
+    Map<String, Object> groups = groupOptions(amplitudeOptions(payload));
+    return groups == null ? null : new ValueMap(groups).toJsonObject();
+  }
+
+  /** Same as {@link #groups(BasePayload)}, but reuses the conversion of recently seen groups. */
+  private @Nullable JSONObject cachedGroups(BasePayload payload) {
+    Map<String, Object> groups = groupOptions(amplitudeOptions(payload));
+    return groups == null ? null : groupsCache.get(groups);
+  }
+
+  private static @Nullable ValueMap amplitudeOptions(BasePayload payload) {
     ValueMap integrations = payload.integrations();
-    if (isNullOrEmpty(integrations)) {
-      return null;
-    }
+    return isNullOrEmpty(integrations) ? null : integrations.getValueMap(AMPLITUDE_KEY);
+  }
 
-    ValueMap amplitudeOptions = integrations.getValueMap(AMPLITUDE_KEY);
+  /** Returns the {@code groups} map of the Amplitude options, as the app passed it. */
+  private static @Nullable Map<String, Object> groupOptions(@Nullable ValueMap amplitudeOptions) {
     if (isNullOrEmpty(amplitudeOptions)) {
       return null;
     }
 
-    ValueMap groups = amplitudeOptions.getValueMap("groups");
-    if (isNullOrEmpty(groups)) {
+    Object groups = amplitudeOptions.get("groups");
+    if (!(groups instanceof Map) || ((Map) groups).isEmpty()) {
       return null;
     }
-
-    return groups.toJsonObject();
+    //noinspection unchecked
+    return (Map<String, Object>) groups;
   }
 
   private void event(
       @NonNull String name,
       @NonNull Properties properties,
       @Nullable Map options,
-      @Nullable JSONObject groups) {
+      @Nullable JSONObject groups,
+      long timestamp,
+      AmplitudeSettings settings) {
     JSONObject propertiesJSON = properties.toJsonObject();
+    SuperProperties superProperties = this.superProperties;
+    superProperties.mergeInto(propertiesJSON);
+    boolean outOfSession = getOptOutOfSessionFromOptions(options);
 
-    amplitude.logEvent(name, propertiesJSON, groups, getOptOutOfSessionFromOptions(options));
-    logger.verbose(
-        "AmplitudeClient.getInstance().logEvent(%s, %s, %s, %s);",
-        name, propertiesJSON, groups, getOptOutOfSessionFromOptions(options));
+    // Amplitude copies the JSON it is given, so the same objects are shared by every instance.
+    logEvent(amplitude, name, propertiesJSON, groups, timestamp, outOfSession);
+    shareDeviceId();
+    for (InstanceRoute route : routes) {
+      if (route.accepts(name)) {
+        logEvent(route.client, name, propertiesJSON, groups, timestamp, outOfSession);
+      }
+    }
+    if (settings.uploadThresholdBytes > 0) {
+      countUploadBytes(
+          name.length()
+              + 2
+              + PayloadSize.estimate(properties)
+              + superProperties.estimatedBytes,
+          settings);
+    }
+    // A backlog being ingested says nothing about the app's own event rate.
+    if (uploadTuner != null && !ingesting && uploadTuner.record(clock.currentTimeMillis())) {
+      amplitude.setEventUploadThreshold(uploadTuner.threshold());
+      amplitude.setEventUploadPeriodMillis(uploadTuner.periodMillis());
+      logger.verbose(
+          "Tuned uploads to %s events or %s ms at %.2f events/s.",
+          uploadTuner.threshold(), uploadTuner.periodMillis(), uploadTuner.rate());
+    }
 
-    // use containsKey since revenue and total can have negative values.
-    if (properties.containsKey("revenue") || properties.containsKey("total")) {
-      if (useLogRevenueV2) {
-        trackWithLogRevenueV2(properties, propertiesJSON);
-      } else {
-        logRevenueV1(properties);
+    RevenueFields revenue = revenueFields.read(properties);
+    try {
+      if (settings.useLogRevenueV2 && settings.trackRevenuePerProduct) {
+        Object products = revenue.products();
+        if (products instanceof List
+            && !((List) products).isEmpty()
+            && trackProductsWithLogRevenueV2(
+                name, revenue, (List) products, propertiesJSON, settings.maxRevenueProducts)) {
+          return;
+        }
+        // No product had a price: log the event's revenue instead, as without the setting.
+      }
+
+      // check presence since revenue and total can have negative values.
+      if (revenue.hasRevenue || revenue.hasTotal) {
+        if (settings.useLogRevenueV2) {
+          trackWithLogRevenueV2(name, revenue, propertiesJSON);
+        } else {
+          logRevenueV1(name, revenue);
+        }
+      }
+    } finally {
+      revenue.clear();
+    }
+  }
+
+  private void logEvent(
+      AmplitudeClient client,
+      String name,
+      JSONObject propertiesJSON,
+      @Nullable JSONObject groups,
+      long timestamp,
+      boolean outOfSession) {
+    if (timestamp > 0) {
+      client.logEvent(name, propertiesJSON, groups, timestamp, outOfSession);
+      logger.verbose(
+          "AmplitudeClient.getInstance().logEvent(%s, %s, %s, %s, %s);",
+          name, propertiesJSON, groups, timestamp, outOfSession);
+    } else {
+      client.logEvent(name, propertiesJSON, groups, outOfSession);
+      logger.verbose(
+          "AmplitudeClient.getInstance().logEvent(%s, %s, %s, %s);",
+          name, propertiesJSON, groups, outOfSession);
+    }
+  }
+
+  private void logRevenueV2(String name, Revenue revenue) {
+    amplitude.logRevenueV2(revenue);
+    for (InstanceRoute route : routes) {
+      if (route.accepts(name)) {
+        route.client.logRevenueV2(revenue);
       }
     }
   }
@@ -348,61 +1129,130 @@ public class AmplitudeIntegration extends Integration<AmplitudeClient> {
   }
 
   @SuppressWarnings("deprecation")
-  private void logRevenueV1(Properties properties) {
-    double revenue = properties.getDouble("revenue", 0);
-    if (revenue == 0) {
-      revenue = properties.getDouble("total", 0);
-    }
-    String productId = properties.getString("productId");
-    int quantity = properties.getInt("quantity", 0);
-    String receipt = properties.getString("receipt");
-    String receiptSignature = properties.getString("receiptSignature");
+  private void logRevenueV1(String name, RevenueFields fields) {
+    double revenue = fields.revenueOrTotal();
+    String productId = fields.productId();
+    int quantity = fields.quantity(0);
+    String receipt = fields.receipt();
+    String receiptSignature = fields.receiptSignature();
     amplitude.logRevenue(productId, quantity, revenue, receipt, receiptSignature);
+    for (InstanceRoute route : routes) {
+      if (route.accepts(name)) {
+        route.client.logRevenue(productId, quantity, revenue, receipt, receiptSignature);
+      }
+    }
     logger.verbose(
         "AmplitudeClient.getInstance().logRevenue(%s, %s, %s, %s, %s);",
         productId, quantity, revenue, receipt, receiptSignature);
   }
 
-  private void trackWithLogRevenueV2(Properties properties, JSONObject propertiesJSON) {
-    double price = properties.getDouble("price", 0);
-    int quantity = properties.getInt("quantity", 1);
-
-    // if no price, fallback to using revenue, then total
-    if (!properties.containsKey("price")) {
-      price = properties.getDouble("revenue", 0);
-      if (price == 0) {
-        price = properties.getDouble("total", 0);
-      }
+  private void trackWithLogRevenueV2(
+      String name, RevenueFields fields, JSONObject propertiesJSON) {
+    double price;
+    int quantity;
+    if (fields.hasPrice) {
+      price = fields.price();
+      quantity = fields.quantity(1);
+    } else {
+      // if no price, fallback to using revenue, then total
+      price = fields.revenueOrTotal();
       // overrides quantity to 1; Amplitude will internally calculate revenue as price * quantity
       quantity = 1;
     }
 
     Revenue ampRevenue = new Revenue().setPrice(price).setQuantity(quantity);
-    if (properties.containsKey("productId")) {
-      ampRevenue.setProductId(properties.getString("productId"));
+    if (fields.hasProductId) {
+      ampRevenue.setProductId(fields.productId());
     }
-    if (properties.containsKey("revenueType")) {
-      ampRevenue.setRevenueType(properties.getString("revenueType"));
+    if (fields.hasRevenueType) {
+      ampRevenue.setRevenueType(fields.revenueType());
     }
-    if (properties.containsKey("receipt") && properties.containsKey("receiptSignature")) {
-      ampRevenue.setReceipt(
-          properties.getString("receipt"), properties.getString("receiptSignature"));
+    if (fields.hasReceipt && fields.hasReceiptSignature) {
+      ampRevenue.setReceipt(fields.receipt(), fields.receiptSignature());
     }
     ampRevenue.setEventProperties(propertiesJSON);
-    amplitude.logRevenueV2(ampRevenue);
+    logRevenueV2(name, ampRevenue);
     logger.verbose("AmplitudeClient.getInstance().logRevenueV2(%s, %s);", price, quantity);
   }
 
+  /**
+   * Logs one {@link Revenue} per entry of the {@code products} array, up to {@code
+   * maxRevenueProducts}. Every revenue shares the event's {@code propertiesJSON}, which is only
+   * converted once. Returns false if no product had a price, so nothing was logged.
+   */
+  private boolean trackProductsWithLogRevenueV2(
+      String name,
+      RevenueFields fields,
+      List products,
+      JSONObject propertiesJSON,
+      int maxRevenueProducts) {
+    String revenueType = fields.revenueType();
+    int count = Math.min(products.size(), maxRevenueProducts);
+    boolean logged = false;
+    for (int i = 0; i < count; i++) {
+      Object item = products.get(i);
+      if (!(item instanceof Map)) {
+        continue;
+      }
+      Map product = (Map) item;
+      double price = RevenueFields.toDouble(product.get("price"), Double.NaN);
+      if (Double.isNaN(price)) {
+        continue;
+      }
+      Object quantity = product.get("quantity");
+      Object productId = product.get("productId");
+      if (productId == null) {
+        productId = product.get("product_id");
+      }
+
+      Revenue ampRevenue =
+          new Revenue()
+              .setPrice(price)
+              .setQuantity(RevenueFields.toInt(quantity, 1));
+      if (productId != null) {
+        ampRevenue.setProductId(String.valueOf(productId));
+      }
+      if (revenueType != null) {
+        ampRevenue.setRevenueType(revenueType);
+      }
+      ampRevenue.setEventProperties(propertiesJSON);
+      logRevenueV2(name, ampRevenue);
+      logged = true;
+      logger.verbose("AmplitudeClient.getInstance().logRevenueV2(%s, %s);", price, quantity);
+    }
+    if (products.size() > count) {
+      logger.verbose("Skipped revenue for %s products over the limit.", products.size() - count);
+    }
+    return logged;
+  }
+
   @Override
-  public void group(GroupPayload group) {
+  public void group(final GroupPayload group) {
+    if (eventBuffer != null) {
+      eventBuffer.offer(
+          new Runnable() {
+            @Override
+            public void run() {
+              applyGroup(group);
+            }
+          },
+          false);
+      return;
+    }
+    applyGroup(group);
+  }
+
+  private void applyGroup(GroupPayload group) {
+    AmplitudeSettings settings = this.settings;
     String groupName = null;
     String groupValue = group.groupId();
 
     Traits traits = group.traits();
     if (!isNullOrEmpty(traits)) {
-      if (traits.containsKey(groupTypeTrait) && traits.containsKey(groupValueTrait)) {
-        groupName = traits.getString(groupTypeTrait);
-        groupValue = traits.getString(groupValueTrait);
+      if (traits.containsKey(settings.groupTypeTrait)
+          && traits.containsKey(settings.groupValueTrait)) {
+        groupName = traits.getString(settings.groupTypeTrait);
+        groupValue = traits.getString(settings.groupValueTrait);
       } else {
         groupName = traits.name();
       }
@@ -412,8 +1262,18 @@ public class AmplitudeIntegration extends Integration<AmplitudeClient> {
       groupName = "[Segment] Group";
     }
 
+    if (groupBatcher != null) {
+      if (groupBatcher.isEmpty()) {
+        scheduleGroupFlush();
+      }
+      if (groupBatcher.add(groupName, groupValue, traits)) {
+        flushGroups();
+      }
+      return;
+    }
+
     // Set group
-    amplitude.setGroup(groupName, groupValue);
+    groupSink.setGroup(groupName, groupValue);
 
     // Set group properties
     Identify groupIdentify = new Identify();
@@ -421,25 +1281,199 @@ public class AmplitudeIntegration extends Integration<AmplitudeClient> {
     if (!isNullOrEmpty(traits)) {
       groupIdentify.set("group_properties", traits.toJsonObject());
     }
+    groupSink.groupIdentify(groupName, groupValue, groupIdentify);
+  }
 
-    amplitude.groupIdentify(groupName, groupValue, groupIdentify);
+  private void scheduleGroupFlush() {
+    if (groupBatchHandler == null) {
+      groupBatchHandler = new Handler(Looper.getMainLooper());
+    }
+    groupBatchHandler.postDelayed(groupFlush, groupBatchWindowMillis);
+  }
+
+  /**
+   * Sends the group calls collected by the {@code groupBatchWindowMillis} setting. Called when the
+   * window ends, when the batch is full and before any other call, so the memberships are in place
+   * before the events that follow them.
+   */
+  void flushGroups() {
+    if (groupBatcher == null || groupBatcher.isEmpty()) {
+      return;
+    }
+    if (groupBatchHandler != null) {
+      groupBatchHandler.removeCallbacks(groupFlush);
+    }
+    groupBatcher.drain(groupSink);
   }
 
   @Override
   public void flush() {
     super.flush();
 
+    memoryBudget.enforce();
+
+    if (eventBuffer != null) {
+      eventBuffer.offer(
+          new Runnable() {
+            @Override
+            public void run() {
+              uploadEvents();
+            }
+          },
+          false);
+      return;
+    }
+    uploadEvents();
+  }
+
+  /**
+   * Adds the estimated size of a logged event or identify to the bytes logged since the last
+   * upload, and uploads once they reach the {@code uploadThresholdBytes} setting.
+   */
+  private void countUploadBytes(long bytes, AmplitudeSettings settings) {
+    bytesSinceUpload += bytes;
+    if (!ingesting && bytesSinceUpload >= settings.uploadThresholdBytes) {
+      logger.verbose("Uploading after about %s bytes of events.", bytesSinceUpload);
+      uploadEvents();
+    }
+  }
+
+  /**
+   * Uploads the events logged so far. While the device is offline the upload is deferred, and
+   * every upload requested until it reconnects is coalesced into a single one.
+   */
+  private void uploadEvents() {
+    bytesSinceUpload = 0;
+    flushGroups();
+    if (!connectivity.isConnected()) {
+      if (!uploadPending) {
+        logger.verbose("Offline, deferring upload until the device reconnects.");
+      }
+      uploadPending = true;
+      return;
+    }
+    uploadPending = false;
     amplitude.uploadEvents();
     logger.verbose("AmplitudeClient.getInstance().uploadEvents();");
+    for (InstanceRoute route : routes) {
+      route.client.uploadEvents();
+    }
+  }
+
+  /**
+   * Sets how the default instance batches uploads, unless the {@code adaptiveUploads} setting
+   * already tunes it.
+   */
+  private void setUploadCadence(int threshold, int periodMillis) {
+    if (uploadTuner != null) {
+      return;
+    }
+    amplitude.setEventUploadThreshold(threshold);
+    amplitude.setEventUploadPeriodMillis(periodMillis);
+    logger.verbose("Uploading every %s events or %s ms.", threshold, periodMillis);
   }
 
+  /**
+   * Uploads once when the app goes to the background, which may be the last chance before the
+   * process is killed, and restores the SDK's default cadence for events logged in the background.
+   */
+  private void uploadOnBackground() {
+    setUploadCadence(
+        Constants.EVENT_UPLOAD_THRESHOLD, (int) Constants.EVENT_UPLOAD_PERIOD_MILLIS);
+    uploadEvents();
+  }
+
+  private void onReconnected() {
+    runInOrder(
+        new Runnable() {
+          @Override
+          public void run() {
+            uploadPendingEvents();
+          }
+        });
+  }
+
+  private void uploadPendingEvents() {
+    if (uploadPending) {
+      uploadEvents();
+    }
+  }
+
+  /**
+   * Clears the user id and generates a new device id without blocking the caller.
+   *
+   * <p>{@code setUserId} and {@code regenerateDeviceId} only post work to the Amplitude SDK's log
+   * thread, the same thread that stamps logged events with the current identity. Events logged
+   * before this call therefore keep the old identity and events logged after it get the new one.
+   * State cached by the integration itself is dropped here, on the integration thread, which
+   * keeps it in order with the payloads around the reset.
+   */
   @Override
   public void reset() {
     super.reset();
 
+    if (eventBuffer != null) {
+      eventBuffer.offer(
+          new Runnable() {
+            @Override
+            public void run() {
+              resetIdentity();
+            }
+          },
+          false);
+    } else {
+      resetIdentity();
+    }
+
+    invalidateCaches();
+  }
+
+  private void resetIdentity() {
+    // Groups joined before the reset belong to the previous user.
+    flushGroups();
+
     amplitude.setUserId(null);
-    amplitude.regenerateDeviceId();
     logger.verbose("AmplitudeClient.getInstance().setUserId(null)");
-    logger.verbose("AmplitudeClient.getInstance().regenerateDeviceId();");
+    if (routes.length == 0) {
+      amplitude.regenerateDeviceId();
+      logger.verbose("AmplitudeClient.getInstance().regenerateDeviceId();");
+      return;
+    }
+
+    // regenerateDeviceId picks the new id later, on the SDK's own thread, so the id is picked here
+    // instead, the same way, and set on every instance in order with the events around the reset.
+    String deviceId = UUID.randomUUID().toString() + "R";
+    amplitude.setDeviceId(deviceId);
+    logger.verbose("AmplitudeClient.getInstance().setDeviceId(%s);", deviceId);
+    for (InstanceRoute route : routes) {
+      route.client.setUserId(null);
+      route.client.setDeviceId(deviceId);
+    }
+    deviceIdShared = true;
+  }
+
+  /**
+   * Gives the additional instances the default instance's device id, so a user is the same device
+   * in every project. The default instance only has an id once it finished initializing on the
+   * SDK's thread, so until then this is tried again whenever an event is sent to the instances.
+   */
+  private void shareDeviceId() {
+    if (deviceIdShared || routes.length == 0) {
+      return;
+    }
+    String deviceId = amplitude.getDeviceId();
+    if (deviceId == null) {
+      return;
+    }
+    for (InstanceRoute route : routes) {
+      route.client.setDeviceId(deviceId);
+    }
+    deviceIdShared = true;
+  }
+
+  /** Drops cached state that belongs to the identity being reset. */
+  private void invalidateCaches() {
+    // The next user's first screen must not be mistaken for a repeat of the previous user's.
+    screenDebouncer.clear();
   }
 }
@@ -1,5 +1,7 @@
 package com.segment.analytics.android.integrations.amplitude;
 
+import android.app.Application;
+import androidx.annotation.Nullable;
 import com.segment.analytics.Middleware;
 import com.segment.analytics.ValueMap;
 import com.segment.analytics.integrations.AliasPayload;
@@ -8,18 +10,105 @@ import com.segment.analytics.integrations.GroupPayload;
 import com.segment.analytics.integrations.IdentifyPayload;
 import com.segment.analytics.integrations.ScreenPayload;
 import com.segment.analytics.integrations.TrackPayload;
-import java.util.Calendar;
 
+/**
+ * Adds an Amplitude session id to every payload.
+ *
+ * <p>A session starts when the app comes to the foreground and is resumed if the app returns
+ * within the session timeout of being backgrounded; otherwise a new session starts. Whether to
+ * start or resume is decided once, at the transition, so intercepting a payload only reads the
+ * current id. Payloads sent while the app is in the background carry a session id of -1.
+ *
+ * <p>When created with an {@link Application}, transitions are taken from its activity lifecycle.
+ * Otherwise they are taken from the {@code Application Opened} and {@code Application
+ * Backgrounded} events recorded by Segment's lifecycle tracking.
+ *
+ * <p>When created with an {@link Application}, the session is also saved to the app's files
+ * directory, at most every {@link #SAVE_INTERVAL_MILLIS} while it is active and at each
+ * transition. A process restarted within the session timeout resumes the saved session when it
+ * comes to the foreground.
+ */
 public class AmplitudeSessionId implements Middleware {
 
   private static final String KEY = "Actions Amplitude";
 
-  private static final long FIRE_TIME = 300 * 1000; // 300 seconds
+  static final long DEFAULT_SESSION_TIMEOUT_MILLIS = 300 * 1000; // 300 seconds
+  static final long SAVE_INTERVAL_MILLIS = 10 * 1000;
 
-  private long sessionID = -1;
+  private final Clock clock;
+  private final long sessionTimeoutMillis;
+  private final boolean observesLifecycle;
+  private final @Nullable SessionStore store;
+
+  /** Read on the analytics thread, written on the main thread at each transition. */
+  private volatile long sessionID = -1;
+
+  // Guarded by this.
+  private long pausedSessionID = -1;
+  private long backgroundedAt;
+  private boolean registering;
+  private long seededForegroundAt = -1;
+
+  private volatile boolean restored;
+  private volatile long savedAt;
+
+  /** Detects lifecycle transitions from the events recorded by Segment's lifecycle tracking. */
+  public AmplitudeSessionId() {
+    this(null, DEFAULT_SESSION_TIMEOUT_MILLIS, Clock.REAL, null);
+  }
+
+  /** Detects lifecycle transitions from the activities of {@code application}. */
+  public AmplitudeSessionId(Application application) {
+    this(application, DEFAULT_SESSION_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * Detects lifecycle transitions from the activities of {@code application}, and resumes a
+   * session if the app returns to the foreground within {@code sessionTimeoutMillis}.
+   */
+  public AmplitudeSessionId(Application application, long sessionTimeoutMillis) {
+    this(application, sessionTimeoutMillis, Clock.REAL, new SessionStore(application));
+  }
+
+  AmplitudeSessionId(
+      @Nullable Application application,
+      long sessionTimeoutMillis,
+      Clock clock,
+      @Nullable SessionStore store) {
+    if (sessionTimeoutMillis < 0) {
+      throw new IllegalArgumentException("sessionTimeoutMillis < 0: " + sessionTimeoutMillis);
+    }
+    this.clock = clock;
+    this.sessionTimeoutMillis = sessionTimeoutMillis;
+    this.observesLifecycle = application != null;
+    this.store = store;
+    if (application != null) {
+      // An app already in the foreground is reported during registration, usually on the main
+      // thread in Application.onCreate. That transition is only recorded, and the session is
+      // decided when the store is read, on the first intercept.
+      registering = true;
+      ForegroundTracker.register(
+          application,
+          new ForegroundTracker.Listener() {
+            @Override
+            public void onForeground() {
+              AmplitudeSessionId.this.onForeground();
+            }
+
+            @Override
+            public void onBackground() {
+              AmplitudeSessionId.this.onBackground();
+            }
+          });
+      registering = false;
+    }
+  }
 
   @Override
   public void intercept(Chain chain) {
+    if (!restored) {
+      restore();
+    }
     BasePayload payload = chain.payload();
 
     switch (payload.type()) {
@@ -44,9 +133,10 @@ public class AmplitudeSessionId implements Middleware {
   }
 
   private BasePayload insertSession(BasePayload payload) {
+    touch();
     return payload
         .toBuilder()
-        .integration(KEY, new ValueMap().putValue("session_id", getSessionId()))
+        .integration(KEY, new ValueMap().putValue("session_id", sessionID))
         .build();
   }
 
@@ -67,40 +157,94 @@ public class AmplitudeSessionId implements Middleware {
   }
 
   private BasePayload track(TrackPayload payload) {
-    if (payload.event().equals("Application Backgrounded")) {
-      onBackground();
-    } else if (payload.event().equals("Application Opened")) {
-      onForeground();
+    if (!observesLifecycle) {
+      String event = payload.event();
+      if ("Application Backgrounded".equals(event)) {
+        onBackground();
+      } else if ("Application Opened".equals(event)) {
+        onForeground();
+      }
     }
     return insertSession(payload);
   }
 
-  private void onBackground() {
-    stopSession();
+  long sessionId() {
+    return sessionID;
+  }
+
+  /**
+   * Takes the saved session as the paused one, so the next foreground can resume it, and starts
+   * the session for a foreground recorded at registration.
+   */
+  private synchronized void restore() {
+    if (restored) {
+      return;
+    }
+    if (store != null && sessionID == -1 && pausedSessionID == -1) {
+      long[] saved = store.read();
+      if (saved != null && saved[0] != -1) {
+        pausedSessionID = saved[0];
+        backgroundedAt = saved[1];
+      }
+    }
+    restored = true;
+    if (seededForegroundAt != -1) {
+      start(seededForegroundAt);
+      seededForegroundAt = -1;
+    }
+  }
+
+  /** Records activity in the current session, saving it if the last save is old enough. */
+  private void touch() {
+    long id = sessionID;
+    if (store == null || id == -1) {
+      return;
+    }
+    long now = clock.currentTimeMillis();
+    if (now - savedAt >= SAVE_INTERVAL_MILLIS) {
+      savedAt = now;
+      store.save(id, now);
+    }
   }
 
-  private void onForeground() {
-    startSession();
+  private void save(long id, long lastActivity) {
+    if (store != null) {
+      savedAt = lastActivity;
+      store.save(id, lastActivity);
+    }
   }
 
-  private long getSessionId() {
+  /** Starts a session, or resumes the paused one if it was paused within the session timeout. */
+  synchronized void onForeground() {
     if (sessionID != -1) {
-      // if sessionId is not -1, then we reset to curTime (essentially creating a new session)
-      // https://help.amplitude.com/hc/en-us/articles/115002323627-Tracking-sessions-in-Amplitude#h_a832c1ce-717a-4ab3-b205-9d7ed418ef1a
-      long curTime = Calendar.getInstance().getTimeInMillis();
-      if (curTime - sessionID >= FIRE_TIME) { // if FIRE_TIME ms have elapsed, reset the sessionId
-        sessionID = curTime; // reset sessionId
-      }
+      return;
     }
-    return sessionID;
+    if (registering && !restored) {
+      seededForegroundAt = clock.currentTimeMillis();
+      return;
+    }
+    restore();
+    start(clock.currentTimeMillis());
   }
 
-  private void startSession() {
-    // Set the session id
-    sessionID = Calendar.getInstance().getTimeInMillis();
+  private void start(long now) {
+    if (pausedSessionID != -1 && now - backgroundedAt < sessionTimeoutMillis) {
+      sessionID = pausedSessionID;
+    } else {
+      sessionID = now;
+    }
+    pausedSessionID = -1;
+    save(sessionID, now);
   }
 
-  private void stopSession() {
+  synchronized void onBackground() {
+    restore();
+    if (sessionID == -1) {
+      return;
+    }
+    pausedSessionID = sessionID;
+    backgroundedAt = clock.currentTimeMillis();
     sessionID = -1;
+    save(pausedSessionID, backgroundedAt);
   }
 }
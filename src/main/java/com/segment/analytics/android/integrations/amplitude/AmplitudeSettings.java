@@ -0,0 +1,73 @@
+package com.segment.analytics.android.integrations.amplitude;
+
+import com.segment.analytics.ValueMap;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Immutable snapshot of the settings that control how payloads are mapped to Amplitude calls.
+ *
+ * <p>The integration holds the current snapshot in a single volatile field and reads it once per
+ * call, so a call always sees one consistent configuration even if the settings are replaced
+ * while it runs. Everything derived from the raw settings is computed here, off the hot path.
+ */
+final class AmplitudeSettings {
+
+  static final int DEFAULT_MAX_REVENUE_PRODUCTS = 100;
+
+  final boolean trackAllPages;
+  final boolean trackAllPagesV2;
+  final boolean trackCategorizedPages;
+  final boolean trackNamedPages;
+  final boolean useLogRevenueV2;
+  final boolean useSegmentTimestamp;
+  final boolean trackRevenuePerProduct;
+  final int maxRevenueProducts;
+  final long screenDebounceMillis;
+  /** Upload once about this many bytes of events were logged, or never if 0. */
+  final long uploadThresholdBytes;
+  final String groupTypeTrait;
+  final String groupValueTrait;
+  final Set<String> traitsToIncrement;
+  final Set<String> traitsToSetOnce;
+  /** True if identify must build an {@code Identify} rather than set the traits as is. */
+  final boolean hasTraitOperations;
+
+  AmplitudeSettings(ValueMap settings) {
+    trackAllPages = settings.getBoolean("trackAllPages", false);
+    trackAllPagesV2 = settings.getBoolean("trackAllPagesV2", true);
+    trackCategorizedPages = settings.getBoolean("trackCategorizedPages", false);
+    trackNamedPages = settings.getBoolean("trackNamedPages", false);
+    useLogRevenueV2 = settings.getBoolean("useLogRevenueV2", false);
+    useSegmentTimestamp = settings.getBoolean("useSegmentTimestamp", false);
+    trackRevenuePerProduct = settings.getBoolean("trackRevenuePerProduct", false);
+    maxRevenueProducts = settings.getInt("maxRevenueProducts", DEFAULT_MAX_REVENUE_PRODUCTS);
+    screenDebounceMillis = settings.getLong("screenDebounceMillis", 0);
+    uploadThresholdBytes = settings.getLong("uploadThresholdBytes", 0);
+    groupTypeTrait = settings.getString("groupTypeTrait");
+    groupValueTrait = settings.getString("groupTypeValue");
+    traitsToIncrement = getStringSet(settings, "traitsToIncrement");
+    traitsToSetOnce = getStringSet(settings, "traitsToSetOnce");
+    hasTraitOperations = !traitsToIncrement.isEmpty() || !traitsToSetOnce.isEmpty();
+  }
+
+  static Set<String> getStringSet(ValueMap valueMap, String key) {
+    try {
+      //noinspection unchecked
+      List<Object> incrementTraits = (List<Object>) valueMap.get(key);
+      if (incrementTraits == null || incrementTraits.size() == 0) {
+        return Collections.emptySet();
+      }
+      Set<String> stringSet = new HashSet<>(incrementTraits.size());
+      for (int i = 0; i < incrementTraits.size(); i++) {
+        stringSet.add((String) incrementTraits.get(i));
+      }
+      return Collections.unmodifiableSet(stringSet);
+    } catch (ClassCastException e) {
+      return Collections.emptySet();
+    }
+  }
+}
@@ -0,0 +1,153 @@
+package com.segment.analytics.android.integrations.amplitude;
+
+import androidx.annotation.Nullable;
+
+import com.segment.analytics.Properties;
+import com.segment.analytics.ValueMap;
+import com.segment.analytics.integrations.ScreenPayload;
+import com.segment.analytics.integrations.TrackPayload;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The parts of a track or screen payload needed to log it, kept while it waits to be handed to
+ * Amplitude.
+ *
+ * <p>Holding these rather than the payload lets the payload's context, which is usually much
+ * larger than the event itself, be collected right away. When created with a {@link StringPool},
+ * the properties are copied with pooled keys and the event name is pooled too. When created with
+ * {@code encode}, the properties are held as an {@link EventCodec} byte array instead, if they can
+ * be encoded, and decoded by {@link #properties()}.
+ */
+final class BufferedEvent {
+
+  /** True for a screen, false for a track. */
+  final boolean screen;
+  /** The event name of a track, or the screen name of a screen. */
+  final @Nullable String name;
+  /** The category of a screen. */
+  final @Nullable String category;
+  private final @Nullable Properties properties;
+  private final @Nullable byte[] encoded;
+  /** The Amplitude options of a track. */
+  final @Nullable ValueMap options;
+  /** The timestamp to log the event with, or 0 to let Amplitude stamp it. */
+  final long timestamp;
+
+  private BufferedEvent(
+      boolean screen,
+      @Nullable String name,
+      @Nullable String category,
+      Properties properties,
+      @Nullable StringPool pool,
+      boolean encode,
+      @Nullable ValueMap options,
+      long timestamp) {
+    this.screen = screen;
+    this.name = name;
+    this.category = category;
+    this.encoded = encode ? EventCodec.encode(properties) : null;
+    this.properties = encoded == null ? properties(properties, pool) : null;
+    this.options = options;
+    this.timestamp = timestamp;
+  }
+
+  static BufferedEvent track(
+      TrackPayload track,
+      String optionsKey,
+      long timestamp,
+      @Nullable StringPool pool,
+      boolean encode) {
+    ValueMap integrations = track.integrations();
+    ValueMap options = integrations == null ? null : integrations.getValueMap(optionsKey);
+    return new BufferedEvent(
+        false,
+        intern(track.event(), pool),
+        null,
+        track.properties(),
+        pool,
+        encode,
+        options,
+        timestamp);
+  }
+
+  static BufferedEvent screen(
+      ScreenPayload screen, long timestamp, @Nullable StringPool pool, boolean encode) {
+    return new BufferedEvent(
+        true,
+        intern(screen.name(), pool),
+        intern(screen.category(), pool),
+        screen.properties(),
+        pool,
+        encode,
+        null,
+        timestamp);
+  }
+
+  /** Recreates an event from its parts, as read back from an {@link EventJournal}. */
+  static BufferedEvent restore(
+      boolean screen,
+      @Nullable String name,
+      @Nullable String category,
+      Properties properties,
+      @Nullable ValueMap options,
+      long timestamp) {
+    return new BufferedEvent(
+        screen, name, category, properties, null, false, options, timestamp);
+  }
+
+  /** Returns the properties, decoding them if they were encoded. */
+  Properties properties() {
+    return encoded == null ? properties : EventCodec.decode(encoded);
+  }
+
+  /**
+   * Returns the properties encoded with {@link EventCodec}, or {@code null} if they can't be.
+   * Properties held encoded are returned without a copy, and must not be modified.
+   */
+  @Nullable byte[] encodedProperties() {
+    return encoded != null ? encoded : EventCodec.encode(properties);
+  }
+
+  /** Size of the encoded properties, or -1 if they are held as they are. */
+  int encodedBytes() {
+    return encoded == null ? -1 : encoded.length;
+  }
+
+  private static @Nullable String intern(@Nullable String string, @Nullable StringPool pool) {
+    return pool == null ? string : pool.intern(string);
+  }
+
+  private static Properties properties(Properties properties, @Nullable StringPool pool) {
+    if (pool == null) {
+      return properties;
+    }
+    Properties copy = new Properties(properties.size());
+    for (Map.Entry<String, Object> entry : properties.entrySet()) {
+      copy.put(pool.intern(entry.getKey()), value(entry.getValue(), pool));
+    }
+    return copy;
+  }
+
+  private static Object value(Object value, StringPool pool) {
+    if (value instanceof Map) {
+      Map<?, ?> map = (Map<?, ?>) value;
+      ValueMap copy = new ValueMap(map.size());
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        copy.put(pool.intern(String.valueOf(entry.getKey())), value(entry.getValue(), pool));
+      }
+      return copy;
+    }
+    if (value instanceof List) {
+      List<?> list = (List<?>) value;
+      List<Object> copy = new ArrayList<>(list.size());
+      for (int i = 0; i < list.size(); i++) {
+        copy.add(value(list.get(i), pool));
+      }
+      return copy;
+    }
+    return value;
+  }
+}
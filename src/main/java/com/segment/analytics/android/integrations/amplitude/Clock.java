@@ -0,0 +1,15 @@
+package com.segment.analytics.android.integrations.amplitude;
+
+/** Source of the current time, so that time-based behaviour can be tested with a fake clock. */
+interface Clock {
+
+  long currentTimeMillis();
+
+  Clock REAL =
+      new Clock() {
+        @Override
+        public long currentTimeMillis() {
+          return System.currentTimeMillis();
+        }
+      };
+}
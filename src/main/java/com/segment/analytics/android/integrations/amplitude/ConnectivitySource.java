@@ -0,0 +1,16 @@
+package com.segment.analytics.android.integrations.amplitude;
+
+/** Tells the integration whether the device can reach the network, and when that changes. */
+interface ConnectivitySource {
+
+  interface Listener {
+
+    /** Called on the main thread when the device goes online or offline. */
+    void onConnectivityChanged(boolean connected);
+  }
+
+  boolean isConnected();
+
+  /** Starts reporting changes to {@code listener}. */
+  void start(Listener listener);
+}
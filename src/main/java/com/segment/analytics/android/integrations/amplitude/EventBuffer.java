@@ -0,0 +1,154 @@
+package com.segment.analytics.android.integrations.amplitude;
+
+import androidx.annotation.Nullable;
+
+import com.segment.analytics.integrations.Logger;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A bounded queue of operations on the Amplitude clients, run in order on a single background
+ * thread.
+ *
+ * <p>Events are dropped when the queue is full. Other operations, such as identity and group
+ * changes, are always queued so the events that do get through are attributed correctly. When the
+ * depth reaches the high watermark the listener is told once, and told again when the queue has
+ * drained down to the low watermark.
+ */
+final class EventBuffer {
+
+  private final int capacity;
+  private final int highWatermark;
+  private final int lowWatermark;
+  private final Executor executor;
+  private final Logger logger;
+  private volatile @Nullable AmplitudeIntegration.BackpressureListener listener;
+
+  // Guarded by this.
+  private final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+  private boolean draining;
+  private boolean overHighWatermark;
+  private long dropped;
+
+  private final Runnable drain =
+      new Runnable() {
+        @Override
+        public void run() {
+          drain();
+        }
+      };
+
+  EventBuffer(int capacity, int highWatermark, int lowWatermark, Logger logger) {
+    this(
+        capacity,
+        highWatermark,
+        lowWatermark,
+        logger,
+        Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+              @Override
+              public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Segment-AmplitudeBuffer");
+                thread.setDaemon(true);
+                return thread;
+              }
+            }));
+  }
+
+  EventBuffer(
+      int capacity, int highWatermark, int lowWatermark, Logger logger, Executor executor) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity <= 0");
+    }
+    this.capacity = capacity;
+    this.highWatermark = Math.max(1, Math.min(highWatermark, capacity));
+    this.lowWatermark = Math.max(0, Math.min(lowWatermark, this.highWatermark - 1));
+    this.logger = logger;
+    this.executor = executor;
+  }
+
+  void setListener(@Nullable AmplitudeIntegration.BackpressureListener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Queues {@code operation}, and returns false if it was dropped because it is an event and the
+   * queue is full.
+   */
+  boolean offer(Runnable operation, boolean event) {
+    boolean crossedHighWatermark = false;
+    boolean scheduleDrain = false;
+    int depth;
+    long dropped;
+    synchronized (this) {
+      if (event && queue.size() >= capacity) {
+        this.dropped++;
+        return false;
+      }
+      queue.add(operation);
+      depth = queue.size();
+      dropped = this.dropped;
+      if (!overHighWatermark && depth >= highWatermark) {
+        overHighWatermark = true;
+        crossedHighWatermark = true;
+      }
+      if (!draining) {
+        draining = true;
+        scheduleDrain = true;
+      }
+    }
+    if (scheduleDrain) {
+      executor.execute(drain);
+    }
+    AmplitudeIntegration.BackpressureListener listener = this.listener;
+    if (crossedHighWatermark && listener != null) {
+      listener.onHighWatermark(depth, dropped);
+    }
+    return true;
+  }
+
+  synchronized int depth() {
+    return queue.size();
+  }
+
+  synchronized long dropped() {
+    return dropped;
+  }
+
+  private void drain() {
+    while (true) {
+      Runnable operation;
+      synchronized (this) {
+        operation = queue.poll();
+        if (operation == null) {
+          draining = false;
+          return;
+        }
+      }
+      try {
+        operation.run();
+      } catch (RuntimeException e) {
+        logger.error(e, "Amplitude operation failed.");
+      }
+
+      boolean reachedLowWatermark = false;
+      int depth;
+      long dropped;
+      synchronized (this) {
+        depth = queue.size();
+        dropped = this.dropped;
+        if (overHighWatermark && depth <= lowWatermark) {
+          overHighWatermark = false;
+          reachedLowWatermark = true;
+        }
+      }
+      AmplitudeIntegration.BackpressureListener listener = this.listener;
+      if (reachedLowWatermark && listener != null) {
+        listener.onLowWatermark(depth, dropped);
+      }
+    }
+  }
+}
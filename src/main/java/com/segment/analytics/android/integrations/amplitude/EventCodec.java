@@ -0,0 +1,278 @@
+package com.segment.analytics.android.integrations.amplitude;
+
+import androidx.annotation.Nullable;
+
+import com.segment.analytics.Properties;
+import com.segment.analytics.ValueMap;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes event properties into a compact byte array while they wait in a buffer, and decodes them
+ * when they are handed to Amplitude.
+ *
+ * <p>A map is encoded as its size followed by its entries, each a key and a value. Sizes, lengths
+ * and integers are varints (integers zigzag-encoded first), strings are UTF-8, and every value
+ * starts with a one-byte type tag. One array replaces the tree of maps, entries, strings and boxed
+ * numbers that the properties are otherwise held as.
+ *
+ * <p>Only maps, collections, strings, booleans, the common numbers and {@code null} are
+ * supported; {@link #encode} returns {@code null} for anything else, and the caller keeps the
+ * properties as they are. Collections are decoded as lists and maps as {@link ValueMap}s, which
+ * convert to the same JSON.
+ */
+final class EventCodec {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int MAX_DEPTH = 16;
+  /** Scratch buffers above this size are not kept for the next event. */
+  private static final int MAX_SCRATCH_BYTES = 64 * 1024;
+
+  private static final byte NULL = 0;
+  private static final byte TRUE = 1;
+  private static final byte FALSE = 2;
+  private static final byte INT = 3;
+  private static final byte LONG = 4;
+  private static final byte FLOAT = 5;
+  private static final byte DOUBLE = 6;
+  private static final byte STRING = 7;
+  private static final byte MAP = 8;
+  private static final byte LIST = 9;
+
+  /** Each thread that buffers events encodes into its own scratch buffer. */
+  private static final ThreadLocal<Writer> WRITERS =
+      new ThreadLocal<Writer>() {
+        @Override
+        protected Writer initialValue() {
+          return new Writer();
+        }
+      };
+
+  private EventCodec() {
+    throw new AssertionError("No instances");
+  }
+
+  /** Returns the encoded properties, or {@code null} if they hold a value that can't be encoded. */
+  static @Nullable byte[] encode(Map<String, ?> properties) {
+    Writer writer = WRITERS.get();
+    try {
+      if (!writer.writeMap(properties, 0)) {
+        return null;
+      }
+      return writer.toByteArray();
+    } finally {
+      writer.reset();
+    }
+  }
+
+  static Properties decode(byte[] encoded) {
+    Reader reader = new Reader(encoded);
+    int size = reader.readVarint();
+    Properties properties = new Properties(size);
+    for (int i = 0; i < size; i++) {
+      String key = reader.readString();
+      properties.put(key, reader.readValue());
+    }
+    return properties;
+  }
+
+  private static final class Writer {
+
+    private byte[] buffer = new byte[256];
+    private int position;
+
+    boolean writeMap(Map<?, ?> map, int depth) {
+      writeVarint(map.size());
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        writeString(String.valueOf(entry.getKey()));
+        if (!writeValue(entry.getValue(), depth + 1)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    boolean writeValue(@Nullable Object value, int depth) {
+      if (value == null) {
+        writeByte(NULL);
+      } else if (value instanceof String) {
+        writeByte(STRING);
+        writeString((String) value);
+      } else if (value instanceof Boolean) {
+        writeByte((Boolean) value ? TRUE : FALSE);
+      } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+        writeByte(INT);
+        writeVarint(zigzag(((Number) value).intValue()));
+      } else if (value instanceof Long) {
+        writeByte(LONG);
+        writeVarint(zigzag((Long) value));
+      } else if (value instanceof Float) {
+        writeByte(FLOAT);
+        writeFixed(Float.floatToIntBits((Float) value), 4);
+      } else if (value instanceof Double) {
+        writeByte(DOUBLE);
+        writeFixed(Double.doubleToLongBits((Double) value), 8);
+      } else if (depth >= MAX_DEPTH) {
+        return false;
+      } else if (value instanceof Map) {
+        writeByte(MAP);
+        return writeMap((Map<?, ?>) value, depth);
+      } else if (value instanceof Collection) {
+        Collection<?> collection = (Collection<?>) value;
+        writeByte(LIST);
+        writeVarint(collection.size());
+        for (Object item : collection) {
+          if (!writeValue(item, depth + 1)) {
+            return false;
+          }
+        }
+      } else {
+        return false;
+      }
+      return true;
+    }
+
+    void writeString(String string) {
+      byte[] bytes = string.getBytes(UTF_8);
+      writeVarint(bytes.length);
+      ensureCapacity(bytes.length);
+      System.arraycopy(bytes, 0, buffer, position, bytes.length);
+      position += bytes.length;
+    }
+
+    void writeVarint(long value) {
+      ensureCapacity(10);
+      while ((value & ~0x7FL) != 0) {
+        buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      buffer[position++] = (byte) value;
+    }
+
+    void writeFixed(long value, int bytes) {
+      ensureCapacity(bytes);
+      for (int i = bytes - 1; i >= 0; i--) {
+        buffer[position++] = (byte) (value >>> (i * 8));
+      }
+    }
+
+    void writeByte(byte value) {
+      ensureCapacity(1);
+      buffer[position++] = value;
+    }
+
+    private void ensureCapacity(int bytes) {
+      if (position + bytes > buffer.length) {
+        byte[] grown = new byte[Math.max(buffer.length * 2, position + bytes)];
+        System.arraycopy(buffer, 0, grown, 0, position);
+        buffer = grown;
+      }
+    }
+
+    byte[] toByteArray() {
+      byte[] bytes = new byte[position];
+      System.arraycopy(buffer, 0, bytes, 0, position);
+      return bytes;
+    }
+
+    void reset() {
+      position = 0;
+      if (buffer.length > MAX_SCRATCH_BYTES) {
+        buffer = new byte[256];
+      }
+    }
+  }
+
+  private static final class Reader {
+
+    private final byte[] buffer;
+    private int position;
+
+    Reader(byte[] buffer) {
+      this.buffer = buffer;
+    }
+
+    @Nullable
+    Object readValue() {
+      byte tag = buffer[position++];
+      switch (tag) {
+        case NULL:
+          return null;
+        case TRUE:
+          return true;
+        case FALSE:
+          return false;
+        case INT:
+          return (int) unzigzag(readVarint64());
+        case LONG:
+          return unzigzag(readVarint64());
+        case FLOAT:
+          return Float.intBitsToFloat((int) readFixed(4));
+        case DOUBLE:
+          return Double.longBitsToDouble(readFixed(8));
+        case STRING:
+          return readString();
+        case MAP:
+          int size = readVarint();
+          ValueMap map = new ValueMap(size);
+          for (int i = 0; i < size; i++) {
+            String key = readString();
+            map.put(key, readValue());
+          }
+          return map;
+        case LIST:
+          int length = readVarint();
+          List<Object> list = new ArrayList<>(length);
+          for (int i = 0; i < length; i++) {
+            list.add(readValue());
+          }
+          return list;
+        default:
+          throw new IllegalStateException("Unknown tag " + tag + " at " + (position - 1));
+      }
+    }
+
+    String readString() {
+      int length = readVarint();
+      String string = new String(buffer, position, length, UTF_8);
+      position += length;
+      return string;
+    }
+
+    int readVarint() {
+      return (int) readVarint64();
+    }
+
+    long readVarint64() {
+      long value = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = buffer[position++];
+        value |= (long) (b & 0x7F) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      return value;
+    }
+
+    long readFixed(int bytes) {
+      long value = 0;
+      for (int i = 0; i < bytes; i++) {
+        value = (value << 8) | (buffer[position++] & 0xFF);
+      }
+      return value;
+    }
+  }
+
+  private static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+}
@@ -0,0 +1,431 @@
+package com.segment.analytics.android.integrations.amplitude;
+
+import android.content.Context;
+import androidx.annotation.Nullable;
+
+import com.segment.analytics.Properties;
+import com.segment.analytics.ValueMap;
+import com.segment.analytics.integrations.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the events waiting in the buffer, kept in a memory-mapped file so
+ * events accepted before the process died can be replayed when it starts again.
+ *
+ * <p>The file starts with a header holding the offset of the oldest record still pending. Each
+ * record is its length, a CRC32 of its bytes, the event's name, category, timestamp and options,
+ * and then its properties encoded with {@link EventCodec}; a length of 0 ends the journal.
+ * Properties that the buffer already holds encoded are copied as they are, so appending is a copy
+ * into the mapping. Flushing the mapping to disk is left to the journal's executor, and appends
+ * made while a flush is pending share it.
+ *
+ * <p>Opening maps and scans the file, so it is done by {@link #open} or {@link #replay} on a
+ * background thread, without the lock that appends take. Events appended before the journal is
+ * open are not journaled, and don't wait for it.
+ *
+ * <p>Records are completed in the order they were appended, once their event was handed to
+ * Amplitude. When none are pending the journal starts over at the beginning of the file; when the
+ * file is full, the pending records are moved to the front if that doesn't overwrite them.
+ * Reading stops at the first record that is truncated or fails its checksum. Since the header is
+ * only flushed with the next append, an event may be replayed after it was handed to Amplitude,
+ * but an event that was journaled is not lost to a crash of the process.
+ */
+final class EventJournal {
+
+  static final String FILE_NAME = "amplitude-segment-journal";
+  static final int DEFAULT_CAPACITY_BYTES = 1024 * 1024;
+
+  private static final int MAGIC = 0x414d504a; // AMPJ
+  private static final int VERSION = 2;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final byte SCREEN = 1;
+  /** Flags, timestamp, and the lengths of the name, category and options. */
+  private static final int FIELDS_HEADER_BYTES = 1 + 8 + 3 * 4;
+  private static final int START_OFFSET = 8;
+  private static final int HEADER_BYTES = 16;
+  private static final int RECORD_HEADER_BYTES = 8;
+  private static final int TERMINATOR_BYTES = 4;
+
+  private final @Nullable Context context;
+  private @Nullable File file;
+  private final int capacity;
+  private final Logger logger;
+  private final Executor executor;
+
+  /** Held while the journal is opened, so the file is mapped and scanned once. */
+  private final Object openLock = new Object();
+  /** Guarded by openLock. */
+  private boolean failed;
+  /** Set once the journal is open, so appends until then don't wait for the lock. */
+  private volatile boolean opened;
+
+  // Guarded by this.
+  private @Nullable MappedByteBuffer buffer;
+  private boolean replayed;
+  private final CRC32 crc = new CRC32();
+  /** Holds the fields of the event being appended. */
+  private ByteBuffer fields = ByteBuffer.allocate(128);
+  /** Offset of the oldest pending record. */
+  private int start;
+  /** Offset of the terminator, where the next record goes. */
+  private int end;
+  /** Offset of the end of the records found when the journal was opened. */
+  private int replayEnd;
+  /** Offset of the record appended last, or -1 if it can't be discarded. */
+  private int last = -1;
+  private boolean commitScheduled;
+
+  private final Runnable commit =
+      new Runnable() {
+        @Override
+        public void run() {
+          MappedByteBuffer buffer;
+          synchronized (EventJournal.this) {
+            commitScheduled = false;
+            buffer = EventJournal.this.buffer;
+          }
+          if (buffer != null) {
+            buffer.force();
+          }
+        }
+      };
+
+  /** Keeps the journal in the app's files directory, which is only resolved on first use. */
+  EventJournal(Context context, int capacity, Logger logger) {
+    this(
+        context,
+        null,
+        capacity,
+        logger,
+        Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+              @Override
+              public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Segment-AmplitudeJournal");
+                thread.setDaemon(true);
+                return thread;
+              }
+            }));
+  }
+
+  EventJournal(File file, int capacity, Logger logger, Executor executor) {
+    this(null, file, capacity, logger, executor);
+  }
+
+  private EventJournal(
+      @Nullable Context context,
+      @Nullable File file,
+      int capacity,
+      Logger logger,
+      Executor executor) {
+    if (capacity < HEADER_BYTES + TERMINATOR_BYTES) {
+      throw new IllegalArgumentException("capacity too small: " + capacity);
+    }
+    this.context = context;
+    this.file = file;
+    this.capacity = capacity;
+    this.logger = logger;
+    this.executor = executor;
+  }
+
+  /**
+   * Appends {@code event}, and returns false if it wasn't journaled because it can't be encoded,
+   * the journal is full or isn't open.
+   */
+  boolean append(BufferedEvent event) {
+    if (!opened) {
+      return false;
+    }
+    byte[] properties = event.encodedProperties();
+    byte[] options = event.options == null ? null : EventCodec.encode(event.options);
+    if (properties == null || (event.options != null && options == null)) {
+      return false;
+    }
+    byte[] name = bytes(event.name);
+    byte[] category = bytes(event.category);
+    synchronized (this) {
+      if (buffer == null) {
+        return false;
+      }
+      int fieldsLength = FIELDS_HEADER_BYTES + length(name) + length(category) + length(options);
+      int length = fieldsLength + properties.length;
+      int size = RECORD_HEADER_BYTES + length;
+      if (end + size + TERMINATOR_BYTES > buffer.capacity() && !compact(size)) {
+        return false;
+      }
+      if (fields.capacity() < fieldsLength) {
+        fields = ByteBuffer.allocate(fieldsLength);
+      }
+      fields.clear();
+      fields.put(event.screen ? SCREEN : 0).putLong(event.timestamp);
+      put(fields, name);
+      put(fields, category);
+      put(fields, options);
+      crc.reset();
+      crc.update(fields.array(), 0, fieldsLength);
+      crc.update(properties, 0, properties.length);
+      // The record only becomes readable once its length is set, after everything else.
+      buffer.putInt(end + size, 0);
+      buffer.position(end + RECORD_HEADER_BYTES);
+      buffer.put(fields.array(), 0, fieldsLength);
+      buffer.put(properties);
+      buffer.putInt(end + 4, (int) crc.getValue());
+      buffer.putInt(end, length);
+      last = end;
+      end += size;
+      if (!commitScheduled) {
+        commitScheduled = true;
+        executor.execute(commit);
+      }
+      return true;
+    }
+  }
+
+  /** Removes the record appended last, if nothing else changed the journal since. */
+  synchronized void discardLast() {
+    if (last < 0) {
+      return;
+    }
+    buffer.putInt(last, 0);
+    end = last;
+    last = -1;
+  }
+
+  /** Completes the oldest pending record, once its event was handed to Amplitude. */
+  synchronized void complete() {
+    if (buffer == null || start >= end) {
+      return;
+    }
+    start += RECORD_HEADER_BYTES + buffer.getInt(start);
+    if (start >= end) {
+      // Nothing is pending: start over at the beginning, terminator first.
+      buffer.putInt(HEADER_BYTES, 0);
+      start = HEADER_BYTES;
+      end = HEADER_BYTES;
+      replayEnd = HEADER_BYTES;
+      last = -1;
+    }
+    buffer.putInt(START_OFFSET, start);
+  }
+
+  /**
+   * Returns the events that were pending when the journal was opened, once. They stay pending
+   * until completed; an entry is {@code null} if its record can't be decoded, and must be
+   * completed all the same.
+   */
+  List<BufferedEvent> replay() {
+    if (!open()) {
+      return Collections.emptyList();
+    }
+    // Only the records are copied under the lock; they are decoded without holding it.
+    ByteBuffer records;
+    synchronized (this) {
+      if (replayed) {
+        return Collections.emptyList();
+      }
+      replayed = true;
+      byte[] bytes = new byte[replayEnd - start];
+      buffer.position(start);
+      buffer.get(bytes);
+      records = ByteBuffer.wrap(bytes);
+    }
+    List<BufferedEvent> events = new ArrayList<>();
+    while (records.hasRemaining()) {
+      byte[] record = new byte[records.getInt()];
+      records.position(records.position() + 4);
+      records.get(record);
+      events.add(decode(record));
+    }
+    return events;
+  }
+
+  /** Number of bytes taken by pending records. */
+  synchronized int pendingBytes() {
+    return end - start;
+  }
+
+  private File file() {
+    if (file == null) {
+      file = new File(context.getFilesDir(), FILE_NAME);
+    }
+    return file;
+  }
+
+  /**
+   * Maps the file and finds the records left by the previous process, and returns false if it
+   * can't be opened. Appends are only journaled once this was called. The file is mapped and
+   * scanned without holding the lock that appends take.
+   */
+  boolean open() {
+    synchronized (openLock) {
+      if (opened) {
+        return true;
+      }
+      if (failed) {
+        return false;
+      }
+      MappedByteBuffer mapped;
+      RandomAccessFile randomAccessFile = null;
+      try {
+        randomAccessFile = new RandomAccessFile(file(), "rw");
+        long size = Math.max(randomAccessFile.length(), capacity);
+        mapped = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      } catch (IOException e) {
+        failed = true;
+        logger.error(e, "Unable to open the event journal.");
+        return false;
+      } finally {
+        // The mapping stays valid once the file is closed.
+        closeQuietly(randomAccessFile);
+      }
+
+      int first = mapped.getInt(START_OFFSET);
+      if (mapped.getInt(0) != MAGIC
+          || mapped.getInt(4) != VERSION
+          || first < HEADER_BYTES
+          || first > mapped.capacity() - TERMINATOR_BYTES) {
+        // A new file, or one that can't be trusted: start empty.
+        mapped.putInt(0, MAGIC);
+        mapped.putInt(4, VERSION);
+        first = HEADER_BYTES;
+        mapped.putInt(START_OFFSET, first);
+        mapped.putInt(first, 0);
+      }
+      int terminator = scan(mapped, first);
+      if (terminator > first) {
+        logger.verbose("Replaying %s bytes of journaled events.", terminator - first);
+      }
+      // Whatever follows is a torn or corrupt record; the next append overwrites it.
+      mapped.putInt(terminator, 0);
+
+      synchronized (this) {
+        buffer = mapped;
+        start = first;
+        end = terminator;
+        replayEnd = terminator;
+      }
+      opened = true;
+      return true;
+    }
+  }
+
+  /** Returns the offset of the first record after {@code position} that is torn or corrupt. */
+  private static int scan(ByteBuffer buffer, int position) {
+    CRC32 crc = new CRC32();
+    while (true) {
+      int length = buffer.getInt(position);
+      if (length <= 0
+          || length > buffer.capacity() - position - RECORD_HEADER_BYTES - TERMINATOR_BYTES) {
+        return position;
+      }
+      byte[] record = new byte[length];
+      buffer.position(position + RECORD_HEADER_BYTES);
+      buffer.get(record);
+      crc.reset();
+      crc.update(record, 0, length);
+      if (buffer.getInt(position + 4) != (int) crc.getValue()) {
+        return position;
+      }
+      position += RECORD_HEADER_BYTES + length;
+    }
+  }
+
+  /** Moves the pending records to the front of the file to make room for {@code size} bytes. */
+  private boolean compact(int size) {
+    int pending = end - start;
+    int shift = start - HEADER_BYTES;
+    // The records are only moved where they can't overwrite themselves, so that until the header
+    // points at the new copy, the old one is still intact.
+    if (pending + TERMINATOR_BYTES > shift
+        || HEADER_BYTES + pending + size + TERMINATOR_BYTES > buffer.capacity()) {
+      logger.verbose("Event journal full, not journaling an event.");
+      return false;
+    }
+    ByteBuffer source = buffer.duplicate();
+    source.limit(end).position(start);
+    ByteBuffer target = buffer.duplicate();
+    target.position(HEADER_BYTES);
+    target.put(source);
+    buffer.putInt(HEADER_BYTES + pending, 0);
+    buffer.putInt(START_OFFSET, HEADER_BYTES);
+    start = HEADER_BYTES;
+    end -= shift;
+    replayEnd = Math.max(HEADER_BYTES, replayEnd - shift);
+    last = last < 0 ? -1 : last - shift;
+    return true;
+  }
+
+  private static @Nullable byte[] bytes(@Nullable String string) {
+    return string == null ? null : string.getBytes(UTF_8);
+  }
+
+  private static int length(@Nullable byte[] bytes) {
+    return bytes == null ? 0 : bytes.length;
+  }
+
+  /** Writes {@code bytes} after their length, or a length of -1 for {@code null}. */
+  private static void put(ByteBuffer buffer, @Nullable byte[] bytes) {
+    if (bytes == null) {
+      buffer.putInt(-1);
+    } else {
+      buffer.putInt(bytes.length).put(bytes);
+    }
+  }
+
+  private static @Nullable byte[] get(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  private static @Nullable BufferedEvent decode(byte[] record) {
+    try {
+      ByteBuffer fields = ByteBuffer.wrap(record);
+      boolean screen = fields.get() == SCREEN;
+      long timestamp = fields.getLong();
+      byte[] name = get(fields);
+      byte[] category = get(fields);
+      byte[] options = get(fields);
+      Properties properties =
+          EventCodec.decode(Arrays.copyOfRange(record, fields.position(), record.length));
+      return BufferedEvent.restore(
+          screen,
+          name == null ? null : new String(name, UTF_8),
+          category == null ? null : new String(category, UTF_8),
+          properties,
+          options == null ? null : new ValueMap(EventCodec.decode(options)),
+          timestamp);
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+
+  private static void closeQuietly(@Nullable RandomAccessFile file) {
+    if (file == null) {
+      return;
+    }
+    try {
+      file.close();
+    } catch (IOException ignored) {
+    }
+  }
+}
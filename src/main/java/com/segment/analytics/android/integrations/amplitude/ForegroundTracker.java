@@ -0,0 +1,108 @@
+package com.segment.analytics.android.integrations.amplitude;
+
+import android.app.Activity;
+import android.app.ActivityManager;
+import android.app.ActivityManager.RunningAppProcessInfo;
+import android.app.Application;
+import android.content.Context;
+import android.os.Bundle;
+
+import java.util.List;
+
+/**
+ * Reports when the app as a whole moves between foreground and background, by counting started
+ * activities. Configuration changes, which stop and restart an activity, are not reported.
+ */
+final class ForegroundTracker implements Application.ActivityLifecycleCallbacks {
+
+  interface Listener {
+
+    void onForeground();
+
+    void onBackground();
+  }
+
+  private final Listener listener;
+  private int startedActivities;
+  private boolean foreground;
+
+  ForegroundTracker(Listener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Creates a tracker and registers it with {@code application}. Activities started before then
+   * are never reported to it, so if the app is already in the foreground the tracker starts out
+   * there, counting one started activity, and tells the listener right away.
+   */
+  static ForegroundTracker register(Application application, Listener listener) {
+    ForegroundTracker tracker = new ForegroundTracker(listener);
+    application.registerActivityLifecycleCallbacks(tracker);
+    if (isInForeground(application)) {
+      tracker.startedActivities = 1;
+      tracker.foreground = true;
+      listener.onForeground();
+    }
+    return tracker;
+  }
+
+  /** Returns true if the app's main process has an activity on screen. */
+  static boolean isInForeground(Context context) {
+    ActivityManager activityManager =
+        (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+    if (activityManager == null || context.getApplicationInfo() == null) {
+      return false;
+    }
+    List<RunningAppProcessInfo> processes = activityManager.getRunningAppProcesses();
+    if (processes == null) {
+      return false;
+    }
+    String processName = context.getApplicationInfo().processName;
+    for (RunningAppProcessInfo process : processes) {
+      if (process.processName != null && process.processName.equals(processName)) {
+        return process.importance == RunningAppProcessInfo.IMPORTANCE_FOREGROUND
+            || process.importance == RunningAppProcessInfo.IMPORTANCE_VISIBLE;
+      }
+    }
+    return false;
+  }
+
+  boolean isForeground() {
+    return foreground;
+  }
+
+  @Override
+  public void onActivityStarted(Activity activity) {
+    startedActivities++;
+    if (!foreground) {
+      foreground = true;
+      listener.onForeground();
+    }
+  }
+
+  @Override
+  public void onActivityStopped(Activity activity) {
+    if (startedActivities > 0) {
+      startedActivities--;
+    }
+    if (startedActivities == 0 && foreground && !activity.isChangingConfigurations()) {
+      foreground = false;
+      listener.onBackground();
+    }
+  }
+
+  @Override
+  public void onActivityCreated(Activity activity, Bundle savedInstanceState) {}
+
+  @Override
+  public void onActivityResumed(Activity activity) {}
+
+  @Override
+  public void onActivityPaused(Activity activity) {}
+
+  @Override
+  public void onActivitySaveInstanceState(Activity activity, Bundle outState) {}
+
+  @Override
+  public void onActivityDestroyed(Activity activity) {}
+}
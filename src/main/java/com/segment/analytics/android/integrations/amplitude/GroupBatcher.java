@@ -0,0 +1,94 @@
+package com.segment.analytics.android.integrations.amplitude;
+
+import androidx.annotation.Nullable;
+
+import com.amplitude.api.Identify;
+import com.segment.analytics.Traits;
+
+import org.json.JSONObject;
+
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.segment.analytics.internal.Utils.isNullOrEmpty;
+
+/**
+ * Collects group calls so a burst of them can be sent as one membership update per group type
+ * and one property update per group.
+ *
+ * <p>The result is the same as sending each call as it comes: the user ends up in the group of
+ * each type that was added last, and every group gets its properties. If a group is added more
+ * than once, only the latest traits are sent, and traits shared by several groups are converted to
+ * JSON once.
+ */
+final class GroupBatcher {
+
+  /** Receives the calls a batch turns into. */
+  interface Sink {
+
+    void setGroup(String groupType, Object groupName);
+
+    void groupIdentify(String groupType, String groupName, Identify groupIdentify);
+  }
+
+  static final int MAX_PENDING = 64;
+
+  private final Map<String, Map<String, Traits>> pending = new LinkedHashMap<>();
+  private int size;
+
+  /** Adds a group to the batch, and returns true if the batch has reached its size limit. */
+  boolean add(String groupType, String groupName, @Nullable Traits traits) {
+    Map<String, Traits> groups = pending.get(groupType);
+    if (groups == null) {
+      groups = new LinkedHashMap<>();
+      pending.put(groupType, groups);
+    }
+    // Re-insert so a group added again is sent in the position of its latest call.
+    if (groups.remove(groupName) == null) {
+      size++;
+    }
+    groups.put(groupName, traits);
+    return size >= MAX_PENDING;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  /** Sends the batch to {@code sink} and empties it. */
+  void drain(Sink sink) {
+    if (size == 0) {
+      return;
+    }
+    for (Map.Entry<String, Map<String, Traits>> entry : pending.entrySet()) {
+      // Each setGroup replaces the membership of its type, so only the latest one counts.
+      String latest = null;
+      for (String groupName : entry.getValue().keySet()) {
+        latest = groupName;
+      }
+      sink.setGroup(entry.getKey(), latest);
+    }
+
+    Map<Traits, JSONObject> converted = new IdentityHashMap<>();
+    for (Map.Entry<String, Map<String, Traits>> entry : pending.entrySet()) {
+      for (Map.Entry<String, Traits> group : entry.getValue().entrySet()) {
+        Identify groupIdentify = new Identify();
+        groupIdentify.set("library", "segment");
+        Traits traits = group.getValue();
+        if (!isNullOrEmpty(traits)) {
+          JSONObject json = converted.get(traits);
+          if (json == null) {
+            json = traits.toJsonObject();
+            converted.put(traits, json);
+          }
+          groupIdentify.set("group_properties", json);
+        }
+        sink.groupIdentify(entry.getKey(), group.getKey(), groupIdentify);
+      }
+    }
+
+    pending.clear();
+    size = 0;
+  }
+}
@@ -0,0 +1,127 @@
+package com.segment.analytics.android.integrations.amplitude;
+
+import com.segment.analytics.ValueMap;
+
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the JSON conversion of the most recently used group options, so events that carry the
+ * same groups share one {@link JSONObject} instead of converting the options every time.
+ *
+ * <p>The options map seen last is recognized by identity, then confirmed by content, which also
+ * catches a map the app changed in place. Other options are looked up by content. Entries are
+ * keyed by a copy of the options and evicted least recently used first. The returned objects are
+ * shared: they are only read, by the integration and by Amplitude, which copies the JSON it is
+ * given. Lookups are made by the thread that maps payloads, but the memory budget may trim the
+ * cache from any thread, so access is synchronized.
+ */
+final class GroupsCache implements MemoryBudget.Trimmable {
+
+  /** Rough cost of an entry besides its options and their JSON. */
+  private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+  private final int capacity;
+  private final LinkedHashMap<Map<String, Object>, Entry> entries;
+  private Map<String, Object> lastOptions;
+  private Entry lastEntry;
+  private long hits;
+  private long misses;
+  private long retainedBytes;
+
+  GroupsCache(final int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity <= 0");
+    }
+    this.capacity = capacity;
+    this.entries =
+        new LinkedHashMap<Map<String, Object>, Entry>(capacity * 2, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<Map<String, Object>, Entry> eldest) {
+            if (size() > capacity) {
+              retainedBytes -= eldest.getValue().bytes;
+              return true;
+            }
+            return false;
+          }
+        };
+  }
+
+  synchronized JSONObject get(Map<String, Object> options) {
+    if (options == lastOptions && lastEntry.options.equals(options)) {
+      hits++;
+      return lastEntry.json;
+    }
+    Entry entry = entries.get(options);
+    if (entry == null) {
+      misses++;
+      Map<String, Object> copy = new LinkedHashMap<>(options);
+      entry = new Entry(copy, new ValueMap(copy).toJsonObject());
+      retainedBytes += entry.bytes;
+      entries.put(copy, entry);
+    } else {
+      hits++;
+    }
+    lastOptions = options;
+    lastEntry = entry;
+    return entry.json;
+  }
+
+  @Override
+  public synchronized long retainedBytes() {
+    return retainedBytes;
+  }
+
+  @Override
+  public synchronized void trimToSize(long maxBytes) {
+    Iterator<Entry> iterator = entries.values().iterator();
+    while (retainedBytes > maxBytes && iterator.hasNext()) {
+      Entry entry = iterator.next();
+      iterator.remove();
+      retainedBytes -= entry.bytes;
+      if (entry == lastEntry) {
+        lastOptions = null;
+        lastEntry = null;
+      }
+    }
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  int capacity() {
+    return capacity;
+  }
+
+  synchronized long hits() {
+    return hits;
+  }
+
+  synchronized long misses() {
+    return misses;
+  }
+
+  /** Fraction of lookups answered without a conversion, or 0 before the first lookup. */
+  synchronized double hitRate() {
+    long lookups = hits + misses;
+    return lookups == 0 ? 0 : (double) hits / lookups;
+  }
+
+  private static final class Entry {
+
+    final Map<String, Object> options;
+    final JSONObject json;
+    /** Estimated bytes held by the options, once as maps and once as JSON. */
+    final long bytes;
+
+    Entry(Map<String, Object> options, JSONObject json) {
+      this.options = options;
+      this.json = json;
+      this.bytes = ENTRY_OVERHEAD_BYTES + 2 * PayloadSize.estimate(options);
+    }
+  }
+}
@@ -0,0 +1,30 @@
+package com.segment.analytics.android.integrations.amplitude;
+
+import androidx.annotation.Nullable;
+
+import com.amplitude.api.AmplitudeClient;
+
+import java.util.Set;
+
+/**
+ * An additional, named Amplitude instance that receives a copy of the events selected by its
+ * routing rules. Identity, group membership and uploads are shared with every instance, so all
+ * projects attribute the events they receive to the same user.
+ */
+final class InstanceRoute {
+
+  final String name;
+  final AmplitudeClient client;
+  /** Names of the events sent to this instance, or {@code null} to send every event. */
+  private final @Nullable Set<String> events;
+
+  InstanceRoute(String name, AmplitudeClient client, @Nullable Set<String> events) {
+    this.name = name;
+    this.client = client;
+    this.events = events;
+  }
+
+  boolean accepts(String event) {
+    return events == null || events.contains(event);
+  }
+}
@@ -0,0 +1,144 @@
+package com.segment.analytics.android.integrations.amplitude;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the caches and buffers held by the integration within a fixed memory budget, and shrinks
+ * them further when the system reports memory pressure.
+ *
+ * <p>Nothing is trimmed while the registered {@link Trimmable}s together hold no more than the
+ * allowed bytes. Otherwise each receives an equal share, and the share left unused by those that
+ * hold less is split among the others. The budget is checked by {@link #enforce()}, and reduced
+ * according to the level passed to {@link #onTrimMemory(int)}.
+ */
+final class MemoryBudget implements ComponentCallbacks2 {
+
+  static final long DEFAULT_BUDGET_BYTES = 256 * 1024;
+
+  /** A cache or buffer whose memory can be reclaimed. */
+  interface Trimmable {
+
+    /** Approximate number of bytes currently held. */
+    long retainedBytes();
+
+    /**
+     * Releases memory until at most {@code maxBytes} are held. Caches drop entries; buffers hand
+     * their pending work to Amplitude rather than discarding it.
+     */
+    void trimToSize(long maxBytes);
+  }
+
+  private final long budgetBytes;
+  private final List<Trimmable> trimmables = new ArrayList<>();
+
+  MemoryBudget(long budgetBytes) {
+    this.budgetBytes = budgetBytes;
+  }
+
+  long budgetBytes() {
+    return budgetBytes;
+  }
+
+  void register(Trimmable trimmable) {
+    trimmables.add(trimmable);
+  }
+
+  /**
+   * Bytes each component is sure to keep once one more is registered, even after the app's UI was
+   * hidden, which happens every time it goes to the background.
+   */
+  long shareOfNext() {
+    return allowedBytes(TRIM_MEMORY_UI_HIDDEN) / (trimmables.size() + 1);
+  }
+
+  long retainedBytes() {
+    long retained = 0;
+    for (int i = 0; i < trimmables.size(); i++) {
+      retained += trimmables.get(i).retainedBytes();
+    }
+    return retained;
+  }
+
+  /** Trims every registered component if together they hold more than the budget. */
+  void enforce() {
+    if (retainedBytes() > budgetBytes) {
+      trimTo(budgetBytes);
+    }
+  }
+
+  @Override
+  public void onTrimMemory(int level) {
+    trimTo(allowedBytes(level));
+  }
+
+  @Override
+  public void onLowMemory() {
+    trimTo(0);
+  }
+
+  @Override
+  public void onConfigurationChanged(Configuration newConfig) {}
+
+  /** Maps a {@link ComponentCallbacks2} trim level to the number of bytes we may keep. */
+  long allowedBytes(int level) {
+    if (level >= TRIM_MEMORY_MODERATE) {
+      // The process is on the LRU list and likely to be killed soon.
+      return 0;
+    } else if (level >= TRIM_MEMORY_BACKGROUND) {
+      return budgetBytes / 4;
+    } else if (level >= TRIM_MEMORY_UI_HIDDEN) {
+      return budgetBytes / 2;
+    } else if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+      return 0;
+    } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+      return budgetBytes / 4;
+    } else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+      return budgetBytes / 2;
+    }
+    return budgetBytes;
+  }
+
+  private void trimTo(long allowedBytes) {
+    int count = trimmables.size();
+    long[] retained = new long[count];
+    long total = 0;
+    for (int i = 0; i < count; i++) {
+      retained[i] = trimmables.get(i).retainedBytes();
+      total += retained[i];
+    }
+    if (total <= allowedBytes) {
+      return;
+    }
+    // Components holding less than the share keep what they hold, and the rest is shared again
+    // among the others, until every remaining one holds more than the share.
+    boolean[] kept = new boolean[count];
+    long remaining = allowedBytes;
+    int left = count;
+    boolean changed = true;
+    while (changed && left > 0) {
+      changed = false;
+      long share = remaining / left;
+      for (int i = 0; i < count; i++) {
+        if (!kept[i] && retained[i] <= share) {
+          kept[i] = true;
+          remaining -= retained[i];
+          left--;
+          changed = true;
+        }
+      }
+    }
+    if (left == 0) {
+      return;
+    }
+    long share = remaining / left;
+    for (int i = 0; i < count; i++) {
+      if (!kept[i]) {
+        trimmables.get(i).trimToSize(share);
+      }
+    }
+  }
+}
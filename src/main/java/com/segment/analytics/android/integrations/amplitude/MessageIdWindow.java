@@ -0,0 +1,138 @@
+package com.segment.analytics.android.integrations.amplitude;
+
+/**
+ * Remembers the most recent Segment message ids so that replayed payloads can be dropped before
+ * they reach Amplitude.
+ *
+ * <p>Ids are stored as 64-bit hashes in a fixed-size ring buffer. A counting bloom filter sits in
+ * front of the ring so the common case, an id that has never been seen, is answered without
+ * scanning the ring. Nothing is allocated per call.
+ *
+ * <p>The arrays are released when the window is trimmed under memory pressure and allocated again
+ * on the next call, at the cost of forgetting the ids seen so far. Payloads and trims come from
+ * different threads, so access is synchronized.
+ */
+final class MessageIdWindow implements MemoryBudget.Trimmable {
+
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final int capacity;
+  private final int filterSize;
+  private long[] ring;
+  private byte[] filter;
+  private int head;
+  private int size;
+  private long suppressed;
+
+  MessageIdWindow(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity <= 0");
+    }
+    this.capacity = capacity;
+    // 8 counters per entry with two probes keeps the false positive rate around 2%.
+    filterSize = Integer.highestOneBit(capacity * 8 - 1) << 1;
+  }
+
+  /** Bytes held by a window of the given capacity once its arrays are allocated. */
+  static long bytesFor(int capacity) {
+    return capacity * 8L + (Integer.highestOneBit(capacity * 8 - 1) << 1);
+  }
+
+  /**
+   * Records {@code messageId} and returns {@code true} if it was already in the window. Null or
+   * empty ids are never treated as duplicates.
+   */
+  synchronized boolean isDuplicate(String messageId) {
+    if (messageId == null || messageId.length() == 0) {
+      return false;
+    }
+    if (ring == null) {
+      ring = new long[capacity];
+      filter = new byte[filterSize];
+    }
+    long hash = hash(messageId);
+    if (mightContain(hash) && ringContains(hash)) {
+      suppressed++;
+      return true;
+    }
+    add(hash);
+    return false;
+  }
+
+  /** Number of payloads reported as duplicates since this window was created. */
+  synchronized long suppressedCount() {
+    return suppressed;
+  }
+
+  int capacity() {
+    return capacity;
+  }
+
+  @Override
+  public synchronized long retainedBytes() {
+    return ring == null ? 0 : bytesFor(capacity);
+  }
+
+  @Override
+  public synchronized void trimToSize(long maxBytes) {
+    // The arrays are fixed size; the only way to shrink is to let them go.
+    if (maxBytes < retainedBytes()) {
+      ring = null;
+      filter = null;
+      head = 0;
+      size = 0;
+    }
+  }
+
+  private void add(long hash) {
+    if (size == capacity) {
+      updateFilter(ring[head], -1);
+    } else {
+      size++;
+    }
+    ring[head] = hash;
+    updateFilter(hash, 1);
+    head = (head + 1) % capacity;
+  }
+
+  private boolean ringContains(long hash) {
+    for (int i = 0; i < size; i++) {
+      if (ring[i] == hash) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean mightContain(long hash) {
+    int mask = filterSize - 1;
+    return filter[(int) hash & mask] != 0 && filter[(int) (hash >>> 32) & mask] != 0;
+  }
+
+  private void updateFilter(long hash, int delta) {
+    int mask = filterSize - 1;
+    int first = (int) hash & mask;
+    int second = (int) (hash >>> 32) & mask;
+    // Counters saturate rather than wrap; a saturated counter is simply never decremented to zero.
+    if (filter[first] != Byte.MAX_VALUE) {
+      filter[first] += delta;
+    }
+    if (filter[second] != Byte.MAX_VALUE) {
+      filter[second] += delta;
+    }
+  }
+
+  /** 64-bit FNV-1a, wide enough that distinct ids in the window practically never collide. */
+  static long hash(String s) {
+    long hash = FNV_OFFSET_BASIS;
+    for (int i = 0, length = s.length(); i < length; i++) {
+      char c = s.charAt(i);
+      hash ^= c & 0xff;
+      hash *= FNV_PRIME;
+      hash ^= c >>> 8;
+      hash *= FNV_PRIME;
+    }
+    return hash;
+  }
+}
@@ -0,0 +1,69 @@
+package com.segment.analytics.android.integrations.amplitude;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import androidx.annotation.Nullable;
+
+import static android.Manifest.permission.ACCESS_NETWORK_STATE;
+import static com.segment.analytics.internal.Utils.hasPermission;
+
+/**
+ * A {@link ConnectivitySource} backed by the connectivity broadcasts of the system.
+ *
+ * <p>The state is cached and only refreshed when the system reports a change, so checking it
+ * doesn't make a call into the system. Without the {@code ACCESS_NETWORK_STATE} permission the
+ * device is always considered connected, and uploads are left to fail as they did before.
+ */
+final class NetworkConnectivity extends BroadcastReceiver implements ConnectivitySource {
+
+  private final Context context;
+  private volatile boolean connected = true;
+  private @Nullable Listener listener;
+
+  NetworkConnectivity(Context context) {
+    this.context = context;
+  }
+
+  @Override
+  public boolean isConnected() {
+    return connected;
+  }
+
+  @Override
+  @SuppressWarnings("deprecation")
+  public void start(Listener listener) {
+    if (!hasPermission(context, ACCESS_NETWORK_STATE)) {
+      return;
+    }
+    this.listener = listener;
+    connected = readState();
+    context.registerReceiver(this, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+  }
+
+  @Override
+  public void onReceive(Context context, Intent intent) {
+    boolean connected = readState();
+    if (connected == this.connected) {
+      return;
+    }
+    this.connected = connected;
+    if (listener != null) {
+      listener.onConnectivityChanged(connected);
+    }
+  }
+
+  @SuppressWarnings("deprecation")
+  private boolean readState() {
+    ConnectivityManager manager =
+        (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    if (manager == null) {
+      return true;
+    }
+    NetworkInfo network = manager.getActiveNetworkInfo();
+    return network != null && network.isConnectedOrConnecting();
+  }
+}
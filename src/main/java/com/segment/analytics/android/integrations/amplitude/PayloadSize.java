@@ -0,0 +1,68 @@
+package com.segment.analytics.android.integrations.amplitude;
+
+import androidx.annotation.Nullable;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Estimates how many bytes a value takes once serialized to JSON, without serializing it.
+ *
+ * <p>Strings count one byte per character plus their quotes, which is exact for ASCII without
+ * escapes. Numbers count a fixed width. The estimate is meant to bound upload sizes, not to
+ * predict them exactly.
+ */
+final class PayloadSize {
+
+  private static final int NUMBER_BYTES = 8;
+  private static final int MAX_DEPTH = 16;
+
+  private PayloadSize() {
+    throw new AssertionError("No instances");
+  }
+
+  static long estimate(@Nullable Object value) {
+    return estimate(value, 0);
+  }
+
+  private static long estimate(@Nullable Object value, int depth) {
+    if (value == null) {
+      return 4; // null
+    }
+    if (value instanceof CharSequence) {
+      return ((CharSequence) value).length() + 2;
+    }
+    if (value instanceof Number) {
+      return NUMBER_BYTES;
+    }
+    if (value instanceof Boolean) {
+      return 5;
+    }
+    if (depth >= MAX_DEPTH) {
+      return 2;
+    }
+    if (value instanceof Map) {
+      long size = 2;
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        // "key":value,
+        size += estimate(entry.getKey(), depth + 1) + estimate(entry.getValue(), depth + 1) + 2;
+      }
+      return size;
+    }
+    if (value instanceof Collection) {
+      long size = 2;
+      for (Object item : (Collection<?>) value) {
+        size += estimate(item, depth + 1) + 1;
+      }
+      return size;
+    }
+    if (value instanceof Object[]) {
+      long size = 2;
+      for (Object item : (Object[]) value) {
+        size += estimate(item, depth + 1) + 1;
+      }
+      return size;
+    }
+    return String.valueOf(value).length() + 2;
+  }
+}
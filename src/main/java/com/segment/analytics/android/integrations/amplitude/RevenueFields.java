@@ -0,0 +1,173 @@
+package com.segment.analytics.android.integrations.amplitude;
+
+import androidx.annotation.Nullable;
+
+import java.util.Map;
+
+/**
+ * The revenue fields of an event's properties, read in a single pass over the map.
+ *
+ * <p>An instance is reused from one event to the next, so it must only be used by one thread at a
+ * time. Values are converted the way {@link com.segment.analytics.ValueMap} converts them, and a
+ * field is present if its key is in the map, even if its value is {@code null}.
+ */
+final class RevenueFields {
+
+  boolean hasRevenue;
+  boolean hasTotal;
+  boolean hasPrice;
+  boolean hasProductId;
+  boolean hasRevenueType;
+  boolean hasReceipt;
+  boolean hasReceiptSignature;
+
+  private @Nullable Object revenue;
+  private @Nullable Object total;
+  private @Nullable Object price;
+  private @Nullable Object quantity;
+  private @Nullable Object productId;
+  private @Nullable Object revenueType;
+  private @Nullable Object receipt;
+  private @Nullable Object receiptSignature;
+  private @Nullable Object products;
+
+  /** Replaces the fields with the ones found in {@code properties}. */
+  RevenueFields read(Map<String, Object> properties) {
+    clear();
+    for (Map.Entry<String, Object> entry : properties.entrySet()) {
+      String key = entry.getKey();
+      if (key == null) {
+        continue;
+      }
+      Object value = entry.getValue();
+      switch (key) {
+        case "revenue":
+          hasRevenue = true;
+          revenue = value;
+          break;
+        case "total":
+          hasTotal = true;
+          total = value;
+          break;
+        case "price":
+          hasPrice = true;
+          price = value;
+          break;
+        case "quantity":
+          quantity = value;
+          break;
+        case "productId":
+          hasProductId = true;
+          productId = value;
+          break;
+        case "revenueType":
+          hasRevenueType = true;
+          revenueType = value;
+          break;
+        case "receipt":
+          hasReceipt = true;
+          receipt = value;
+          break;
+        case "receiptSignature":
+          hasReceiptSignature = true;
+          receiptSignature = value;
+          break;
+        case "products":
+          products = value;
+          break;
+        default:
+          break;
+      }
+    }
+    return this;
+  }
+
+  /** Drops the values read last, so the properties they belong to can be collected. */
+  void clear() {
+    hasRevenue = false;
+    hasTotal = false;
+    hasPrice = false;
+    hasProductId = false;
+    hasRevenueType = false;
+    hasReceipt = false;
+    hasReceiptSignature = false;
+    revenue = null;
+    total = null;
+    price = null;
+    quantity = null;
+    productId = null;
+    revenueType = null;
+    receipt = null;
+    receiptSignature = null;
+    products = null;
+  }
+
+  /** The revenue, or the total if there is no non-zero revenue. */
+  double revenueOrTotal() {
+    double value = toDouble(revenue, 0);
+    return value == 0 ? toDouble(total, 0) : value;
+  }
+
+  double price() {
+    return toDouble(price, 0);
+  }
+
+  int quantity(int defaultValue) {
+    return toInt(quantity, defaultValue);
+  }
+
+  @Nullable
+  String productId() {
+    return toString(productId);
+  }
+
+  @Nullable
+  String revenueType() {
+    return toString(revenueType);
+  }
+
+  @Nullable
+  String receipt() {
+    return toString(receipt);
+  }
+
+  @Nullable
+  String receiptSignature() {
+    return toString(receiptSignature);
+  }
+
+  @Nullable
+  Object products() {
+    return products;
+  }
+
+  static double toDouble(@Nullable Object value, double defaultValue) {
+    if (value instanceof Number) {
+      return ((Number) value).doubleValue();
+    }
+    if (value instanceof String) {
+      try {
+        return Double.valueOf((String) value);
+      } catch (NumberFormatException ignored) {
+      }
+    }
+    return defaultValue;
+  }
+
+  static int toInt(@Nullable Object value, int defaultValue) {
+    if (value instanceof Number) {
+      return ((Number) value).intValue();
+    }
+    if (value instanceof String) {
+      try {
+        return Integer.valueOf((String) value);
+      } catch (NumberFormatException ignored) {
+      }
+    }
+    return defaultValue;
+  }
+
+  private static @Nullable String toString(@Nullable Object value) {
+    return value == null ? null : String.valueOf(value);
+  }
+}
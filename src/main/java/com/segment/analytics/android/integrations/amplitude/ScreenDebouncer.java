@@ -0,0 +1,60 @@
+package com.segment.analytics.android.integrations.amplitude;
+
+/**
+ * Detects screen calls that repeat the previous screen of the same name and category within a
+ * short window, as happens when an activity is recreated or a fragment transaction is replayed.
+ *
+ * <p>Screens are tracked in a small direct-mapped table of hashes, names, categories and
+ * timestamps, so checking a screen allocates nothing. A matching hash is confirmed with the name
+ * and category, so a different screen is never suppressed. Two different screens that map to the
+ * same slot simply evict each other; the worst case is a repeat that is not suppressed.
+ */
+final class ScreenDebouncer {
+
+  private static final int SLOTS = 16;
+
+  private final int[] keys = new int[SLOTS];
+  private final String[] names = new String[SLOTS];
+  private final String[] categories = new String[SLOTS];
+  private final long[] times = new long[SLOTS];
+  private final boolean[] used = new boolean[SLOTS];
+
+  /**
+   * Returns {@code true} if a screen with this name and category was accepted less than {@code
+   * windowMillis} before {@code now}. Otherwise records the screen and returns {@code false}.
+   */
+  boolean isRepeat(String name, String category, long now, long windowMillis) {
+    int key = hash(name, category);
+    int slot = (key ^ (key >>> 16)) & (SLOTS - 1);
+    if (used[slot]
+        && keys[slot] == key
+        && now - times[slot] < windowMillis
+        && equal(names[slot], name)
+        && equal(categories[slot], category)) {
+      return true;
+    }
+    used[slot] = true;
+    keys[slot] = key;
+    names[slot] = name;
+    categories[slot] = category;
+    times[slot] = now;
+    return false;
+  }
+
+  void clear() {
+    for (int i = 0; i < SLOTS; i++) {
+      used[i] = false;
+      names[i] = null;
+      categories[i] = null;
+    }
+  }
+
+  private static boolean equal(String a, String b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+  private static int hash(String name, String category) {
+    int hash = name == null ? 0 : name.hashCode();
+    return 31 * hash + (category == null ? 0 : category.hashCode());
+  }
+}
@@ -0,0 +1,146 @@
+package com.segment.analytics.android.integrations.amplitude;
+
+import android.content.Context;
+import androidx.annotation.Nullable;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Keeps the current session id and the time of the last activity in it in a small file, so a
+ * process restarted within the session timeout can resume the session.
+ *
+ * <p>Saves are coalesced: they only record the latest state, and a write is scheduled on the
+ * store's executor if none is pending. The file is replaced atomically, so a reader sees either
+ * the previous state or the new one.
+ */
+final class SessionStore {
+
+  static final String FILE_NAME = "amplitude-segment-session";
+  private static final int VERSION = 1;
+
+  private final @Nullable Context context;
+  private @Nullable File file;
+  private final Executor executor;
+
+  // Guarded by this.
+  private long sessionId;
+  private long lastActivity;
+  private boolean writeScheduled;
+
+  private final Runnable write =
+      new Runnable() {
+        @Override
+        public void run() {
+          long sessionId;
+          long lastActivity;
+          synchronized (SessionStore.this) {
+            writeScheduled = false;
+            sessionId = SessionStore.this.sessionId;
+            lastActivity = SessionStore.this.lastActivity;
+          }
+          write(sessionId, lastActivity);
+        }
+      };
+
+  /** Stores the session in the app's files directory, which is only resolved on first use. */
+  SessionStore(Context context) {
+    this.context = context;
+    this.executor =
+        Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+              @Override
+              public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Segment-AmplitudeSession");
+                thread.setDaemon(true);
+                return thread;
+              }
+            });
+  }
+
+  SessionStore(File file, Executor executor) {
+    this.context = null;
+    this.file = file;
+    this.executor = executor;
+  }
+
+  private synchronized File file() {
+    if (file == null) {
+      file = new File(context.getFilesDir(), FILE_NAME);
+    }
+    return file;
+  }
+
+  /**
+   * Returns the session id and last activity time last written, or {@code null} if there are none
+   * or they can't be read.
+   */
+  @Nullable
+  long[] read() {
+    File file = file();
+    if (!file.exists()) {
+      return null;
+    }
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new FileInputStream(file));
+      if (in.readInt() != VERSION) {
+        return null;
+      }
+      return new long[] {in.readLong(), in.readLong()};
+    } catch (IOException e) {
+      return null;
+    } finally {
+      closeQuietly(in);
+    }
+  }
+
+  void save(long sessionId, long lastActivity) {
+    synchronized (this) {
+      this.sessionId = sessionId;
+      this.lastActivity = lastActivity;
+      if (writeScheduled) {
+        return;
+      }
+      writeScheduled = true;
+    }
+    executor.execute(write);
+  }
+
+  private void write(long sessionId, long lastActivity) {
+    File file = file();
+    File temp = new File(file.getPath() + ".tmp");
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new FileOutputStream(temp));
+      out.writeInt(VERSION);
+      out.writeLong(sessionId);
+      out.writeLong(lastActivity);
+      out.close();
+      out = null;
+      if (!temp.renameTo(file)) {
+        temp.delete();
+      }
+    } catch (IOException e) {
+      closeQuietly(out);
+      temp.delete();
+    }
+  }
+
+  private static void closeQuietly(@Nullable Closeable closeable) {
+    if (closeable == null) {
+      return;
+    }
+    try {
+      closeable.close();
+    } catch (IOException ignored) {
+    }
+  }
+}
@@ -0,0 +1,75 @@
+package com.segment.analytics.android.integrations.amplitude;
+
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares one instance of each event name and property key among the events waiting in a buffer.
+ *
+ * <p>Apps often build these strings on the fly, so every buffered event would otherwise hold its
+ * own copies. The pool is safe to use from several threads and bounded: once it holds {@code
+ * maxSize} strings, new strings are returned as they are. Long strings, which are unlikely to
+ * repeat, are never pooled. The pool is registered with the {@link MemoryBudget}; trimming clears
+ * it, which is safe since events already holding pooled strings keep them.
+ */
+final class StringPool implements MemoryBudget.Trimmable {
+
+  static final int DEFAULT_MAX_SIZE = 4096;
+  static final int MAX_LENGTH = 128;
+  /** Rough cost of a pooled string besides its characters: its header and the map entry. */
+  private static final int ENTRY_OVERHEAD_BYTES = 72;
+
+  private final ConcurrentHashMap<String, String> strings;
+  private final int maxSize;
+  private final AtomicLong retainedBytes = new AtomicLong();
+
+  StringPool(int maxSize) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize <= 0");
+    }
+    this.maxSize = maxSize;
+    this.strings = new ConcurrentHashMap<>(Math.min(maxSize, 256));
+  }
+
+  /** Returns the pooled instance equal to {@code string}, pooling it if there is room. */
+  @Nullable
+  String intern(@Nullable String string) {
+    if (string == null || string.length() > MAX_LENGTH) {
+      return string;
+    }
+    String pooled = strings.get(string);
+    if (pooled != null) {
+      return pooled;
+    }
+    // Concurrent callers may overshoot the bound by a few entries, which is fine.
+    if (strings.size() >= maxSize) {
+      return string;
+    }
+    pooled = strings.putIfAbsent(string, string);
+    if (pooled != null) {
+      return pooled;
+    }
+    retainedBytes.addAndGet(ENTRY_OVERHEAD_BYTES + 2 * string.length());
+    return string;
+  }
+
+  @Override
+  public long retainedBytes() {
+    return retainedBytes.get();
+  }
+
+  @Override
+  public void trimToSize(long maxBytes) {
+    if (retainedBytes.get() > maxBytes) {
+      // Strings pooled while clearing may be counted after it; the estimate only needs to be close.
+      strings.clear();
+      retainedBytes.set(0);
+    }
+  }
+
+  int size() {
+    return strings.size();
+  }
+}
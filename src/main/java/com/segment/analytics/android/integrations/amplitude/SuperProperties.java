@@ -0,0 +1,68 @@
+package com.segment.analytics.android.integrations.amplitude;
+
+import com.segment.analytics.ValueMap;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Properties added to every event, converted to JSON once when they are set.
+ *
+ * <p>Instances are immutable, so the integration can swap them in while events are being logged.
+ * The JSON values are shared by every event they are merged into and must not be modified.
+ */
+final class SuperProperties {
+
+  static final SuperProperties EMPTY = new SuperProperties(new String[0], new Object[0], 0);
+
+  private final String[] keys;
+  private final Object[] values;
+  /** Estimated bytes the properties add to a serialized event. */
+  final long estimatedBytes;
+
+  private SuperProperties(String[] keys, Object[] values, long estimatedBytes) {
+    this.keys = keys;
+    this.values = values;
+    this.estimatedBytes = estimatedBytes;
+  }
+
+  static SuperProperties of(Map<String, ?> properties) {
+    if (properties.isEmpty()) {
+      return EMPTY;
+    }
+    ValueMap map = new ValueMap();
+    for (Map.Entry<String, ?> entry : properties.entrySet()) {
+      map.put(entry.getKey(), entry.getValue());
+    }
+    JSONObject json = map.toJsonObject();
+    String[] keys = new String[json.length()];
+    Object[] values = new Object[json.length()];
+    Iterator<String> it = json.keys();
+    for (int i = 0; it.hasNext(); i++) {
+      keys[i] = it.next();
+      values[i] = json.opt(keys[i]);
+    }
+    return new SuperProperties(keys, values, PayloadSize.estimate(map) - 2);
+  }
+
+  boolean isEmpty() {
+    return keys.length == 0;
+  }
+
+  /** Adds the properties to {@code event}, keeping the event's value for keys it already has. */
+  void mergeInto(JSONObject event) {
+    for (int i = 0; i < keys.length; i++) {
+      if (event.has(keys[i])) {
+        continue;
+      }
+      try {
+        event.put(keys[i], values[i]);
+      } catch (JSONException ignored) {
+        // Values were valid when they were first converted.
+      }
+    }
+  }
+}
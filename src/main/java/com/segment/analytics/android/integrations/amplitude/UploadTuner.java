@@ -0,0 +1,106 @@
+package com.segment.analytics.android.integrations.amplitude;
+
+/**
+ * Picks the Amplitude upload threshold and period from the rate of recent events.
+ *
+ * <p>The rate is measured over a sliding window of {@link #BUCKETS} buckets of {@link
+ * #BUCKET_MILLIS} each. The threshold is the number of events expected in the longest allowed
+ * period, so a chatty session uploads large batches when they fill up. The period grows with the
+ * threshold, so a quiet session, whose threshold is rarely reached, still uploads promptly.
+ * Everything stays within the configured bounds, and the parameters are only re-evaluated when a
+ * bucket is completed, so recording an event is a few arithmetic operations.
+ */
+final class UploadTuner {
+
+  static final int BUCKETS = 6;
+  static final long BUCKET_MILLIS = 10 * 1000;
+
+  private final int minThreshold;
+  private final int maxThreshold;
+  private final int minPeriodMillis;
+  private final int maxPeriodMillis;
+
+  private final int[] counts = new int[BUCKETS];
+  private long bucket = -1;
+  private int threshold;
+  private int periodMillis;
+
+  UploadTuner(int minThreshold, int maxThreshold, int minPeriodMillis, int maxPeriodMillis) {
+    if (minThreshold <= 0 || maxThreshold < minThreshold) {
+      throw new IllegalArgumentException(
+          "Invalid upload threshold bounds: " + minThreshold + ", " + maxThreshold);
+    }
+    if (minPeriodMillis <= 0 || maxPeriodMillis < minPeriodMillis) {
+      throw new IllegalArgumentException(
+          "Invalid upload period bounds: " + minPeriodMillis + ", " + maxPeriodMillis);
+    }
+    this.minThreshold = minThreshold;
+    this.maxThreshold = maxThreshold;
+    this.minPeriodMillis = minPeriodMillis;
+    this.maxPeriodMillis = maxPeriodMillis;
+  }
+
+  /**
+   * Records an event logged at {@code now}, and returns true if the threshold or period changed as
+   * a result.
+   */
+  boolean record(long now) {
+    long current = now / BUCKET_MILLIS;
+    boolean completedBucket = false;
+    if (current != bucket) {
+      if (bucket >= 0 && current > bucket) {
+        completedBucket = true;
+        for (long b = bucket + 1; b <= current && b <= bucket + BUCKETS; b++) {
+          counts[(int) (b % BUCKETS)] = 0;
+        }
+      } else {
+        // First event, or the clock went backwards: start over.
+        for (int i = 0; i < BUCKETS; i++) {
+          counts[i] = 0;
+        }
+      }
+      bucket = current;
+    }
+    counts[(int) (current % BUCKETS)]++;
+    return completedBucket && retune();
+  }
+
+  /** Events per second over the completed buckets of the window. */
+  double rate() {
+    long events = 0;
+    int currentIndex = (int) (bucket % BUCKETS);
+    for (int i = 0; i < BUCKETS; i++) {
+      if (i != currentIndex) {
+        events += counts[i];
+      }
+    }
+    return events * 1000.0 / ((BUCKETS - 1) * BUCKET_MILLIS);
+  }
+
+  int threshold() {
+    return threshold;
+  }
+
+  int periodMillis() {
+    return periodMillis;
+  }
+
+  private boolean retune() {
+    double expected = Math.ceil(rate() * maxPeriodMillis / 1000.0);
+    int threshold = (int) Math.max(minThreshold, Math.min(maxThreshold, expected));
+    int periodMillis = minPeriodMillis;
+    if (maxThreshold > minThreshold) {
+      periodMillis +=
+          (int)
+              ((long) (maxPeriodMillis - minPeriodMillis)
+                  * (threshold - minThreshold)
+                  / (maxThreshold - minThreshold));
+    }
+    if (threshold == this.threshold && periodMillis == this.periodMillis) {
+      return false;
+    }
+    this.threshold = threshold;
+    this.periodMillis = periodMillis;
+    return true;
+  }
+}
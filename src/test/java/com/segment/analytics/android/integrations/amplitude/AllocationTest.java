@@ -0,0 +1,243 @@
+package com.segment.analytics.android.integrations.amplitude;
+
+import android.app.Application;
+import android.content.Context;
+
+import com.amplitude.api.AmplitudeClient;
+import com.amplitude.api.Identify;
+import com.amplitude.api.Revenue;
+import com.segment.analytics.Analytics;
+import com.segment.analytics.Middleware;
+import com.segment.analytics.Properties;
+import com.segment.analytics.Traits;
+import com.segment.analytics.ValueMap;
+import com.segment.analytics.integrations.BasePayload;
+import com.segment.analytics.integrations.IdentifyPayload;
+import com.segment.analytics.integrations.Logger;
+import com.segment.analytics.integrations.ScreenPayload;
+import com.segment.analytics.integrations.TrackPayload;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.objenesis.ObjenesisStd;
+
+import static com.segment.analytics.Analytics.LogLevel.NONE;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+/**
+ * Fails when the bytes allocated by a single call on a hot path grow past its budget. Budgets are
+ * set with some headroom over the measured value; when a change legitimately needs more, raise the
+ * budget in the same change and say why.
+ */
+public class AllocationTest {
+
+  // Measured on JDK 17: track 584, track with revenue 776, identify 496, screen 736, intercept 3064.
+  private static final long TRACK_BUDGET = 1024;
+  private static final long TRACK_WITH_REVENUE_BUDGET = 1536;
+  private static final long IDENTIFY_BUDGET = 1024;
+  private static final long SCREEN_BUDGET = 1536;
+  private static final long INTERCEPT_BUDGET = 6144;
+
+  private static final int WARMUP = 5000;
+  private static final int ITERATIONS = 2000;
+
+  @Mock Application application;
+  @Mock Analytics analytics;
+
+  private AmplitudeIntegration integration;
+
+  @Before
+  public void setUp() {
+    initMocks(this);
+    assumeTrue(TraceReplay.allocatedBytes() > 0);
+
+    when(analytics.getApplication()).thenReturn(application);
+    when(analytics.logger("Amplitude")).thenReturn(Logger.with(NONE));
+
+    final AmplitudeClient amplitude = new ObjenesisStd().newInstance(NoOpAmplitudeClient.class);
+    integration = new AmplitudeIntegration(new TraceReplay.FixedProvider(amplitude), analytics,
+        new ValueMap().putValue("apiKey", "foo"));
+  }
+
+  @Test
+  public void track() {
+    final TrackPayload payload = new TrackPayload.Builder()
+        .anonymousId("foo")
+        .event("Button Tapped")
+        .properties(new Properties().putValue("screen", "Home").putValue("position", 3))
+        .build();
+
+    assertWithinBudget("track", TRACK_BUDGET, new Runnable() {
+      @Override
+      public void run() {
+        integration.track(payload);
+      }
+    });
+  }
+
+  @Test
+  public void trackWithRevenue() {
+    final TrackPayload payload = new TrackPayload.Builder()
+        .anonymousId("foo")
+        .event("Order Completed")
+        .properties(new Properties()
+            .putRevenue(20)
+            .putValue("productId", "bar")
+            .putValue("quantity", 2)
+            .putValue("currency", "USD"))
+        .build();
+
+    assertWithinBudget("track with revenue", TRACK_WITH_REVENUE_BUDGET, new Runnable() {
+      @Override
+      public void run() {
+        integration.track(payload);
+      }
+    });
+  }
+
+  @Test
+  public void identify() {
+    final IdentifyPayload payload = new IdentifyPayload.Builder()
+        .userId("foo")
+        .traits(new Traits().putEmail("foo@example.com").putValue("plan", "pro"))
+        .build();
+
+    assertWithinBudget("identify", IDENTIFY_BUDGET, new Runnable() {
+      @Override
+      public void run() {
+        integration.identify(payload);
+      }
+    });
+  }
+
+  @Test
+  public void screen() {
+    final ScreenPayload payload = new ScreenPayload.Builder()
+        .anonymousId("foo")
+        .name("Home")
+        .properties(new Properties().putValue("referrer", "Search"))
+        .build();
+
+    assertWithinBudget("screen", SCREEN_BUDGET, new Runnable() {
+      @Override
+      public void run() {
+        integration.screen(payload);
+      }
+    });
+  }
+
+  @Test
+  public void intercept() {
+    final AmplitudeSessionId sessionId = new AmplitudeSessionId();
+    final TrackPayload payload = new TrackPayload.Builder()
+        .anonymousId("foo")
+        .event("Button Tapped")
+        .build();
+    final Middleware.Chain chain = new Middleware.Chain() {
+      @Override
+      public BasePayload payload() {
+        return payload;
+      }
+
+      @Override
+      public void proceed(BasePayload payload) {}
+    };
+
+    assertWithinBudget("intercept", INTERCEPT_BUDGET, new Runnable() {
+      @Override
+      public void run() {
+        sessionId.intercept(chain);
+      }
+    });
+  }
+
+  private static void assertWithinBudget(String operation, long budget, Runnable call) {
+    for (int i = 0; i < WARMUP; i++) {
+      call.run();
+    }
+    long before = TraceReplay.allocatedBytes();
+    for (int i = 0; i < ITERATIONS; i++) {
+      call.run();
+    }
+    long perCall = (TraceReplay.allocatedBytes() - before) / ITERATIONS;
+    assertTrue(operation + " allocates " + perCall + " bytes per call, over its budget of "
+        + budget, perCall <= budget);
+  }
+
+  /**
+   * An {@link AmplitudeClient} whose SDK entry points do nothing. It is created without running
+   * its constructor, so none of the SDK's threads or storage are set up.
+   */
+  static class NoOpAmplitudeClient extends AmplitudeClient {
+
+    @Override
+    public AmplitudeClient initialize(Context context, String apiKey) {
+      return this;
+    }
+
+    @Override
+    public AmplitudeClient enableForegroundTracking(Application app) {
+      return this;
+    }
+
+    @Override
+    public AmplitudeClient trackSessionEvents(boolean trackSessionEvents) {
+      return this;
+    }
+
+    @Override
+    public AmplitudeClient disableLocationListening() {
+      return this;
+    }
+
+    @Override
+    public AmplitudeClient useAdvertisingIdForDeviceId() {
+      return this;
+    }
+
+    @Override
+    public void logEvent(String eventType, JSONObject eventProperties, JSONObject groups,
+        boolean outOfSession) {}
+
+    @Override
+    public void logEvent(String eventType, JSONObject eventProperties, JSONObject groups,
+        long timestamp, boolean outOfSession) {}
+
+    @Override
+    public void logRevenue(String productId, int quantity, double price, String receipt,
+        String receiptSignature) {}
+
+    @Override
+    public void logRevenueV2(Revenue revenue) {}
+
+    @Override
+    public void identify(Identify identify) {}
+
+    @Override
+    public void setUserProperties(JSONObject userProperties) {}
+
+    @Override
+    public AmplitudeClient setUserId(String userId) {
+      return this;
+    }
+
+    @Override
+    public void setGroup(String groupType, Object groupName) {}
+
+    @Override
+    public void groupIdentify(String groupType, Object groupName, Identify groupIdentify) {}
+
+    @Override
+    public void uploadEvents() {}
+
+    @Override
+    public AmplitudeClient regenerateDeviceId() {
+      return this;
+    }
+  }
+}
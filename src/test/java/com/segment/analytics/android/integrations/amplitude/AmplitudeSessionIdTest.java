@@ -0,0 +1,311 @@
+package com.segment.analytics.android.integrations.amplitude;
+
+import android.app.Activity;
+import android.app.ActivityManager;
+import android.app.ActivityManager.RunningAppProcessInfo;
+import android.app.Application;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+
+import com.segment.analytics.Middleware;
+import com.segment.analytics.ValueMap;
+import com.segment.analytics.integrations.BasePayload;
+import com.segment.analytics.integrations.TrackPayload;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Collections;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class AmplitudeSessionIdTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Mock Application application;
+  @Mock Activity activity;
+
+  private AmplitudeTest.TestClock clock;
+  private ForegroundTracker tracker;
+  private AmplitudeSessionId sessionId;
+
+  @Before
+  public void setUp() {
+    initMocks(this);
+    clock = new AmplitudeTest.TestClock();
+    clock.now = 1000;
+    sessionId = new AmplitudeSessionId(application, 60 * 1000, clock, null);
+    tracker = captureTracker(application);
+  }
+
+  @Test
+  public void noSessionBeforeForeground() {
+    assertEquals(-1L, intercept(sessionId, "foo"));
+  }
+
+  @Test
+  public void startsSessionOnForeground() {
+    tracker.onActivityStarted(activity);
+
+    assertEquals(1000L, intercept(sessionId, "foo"));
+    clock.advance(10 * 60 * 1000);
+    // The id is decided at the transition, however long the session runs.
+    assertEquals(1000L, intercept(sessionId, "bar"));
+  }
+
+  @Test
+  public void noSessionInBackground() {
+    tracker.onActivityStarted(activity);
+    tracker.onActivityStopped(activity);
+
+    assertEquals(-1L, intercept(sessionId, "foo"));
+  }
+
+  @Test
+  public void resumesSessionWithinTimeout() {
+    tracker.onActivityStarted(activity);
+    tracker.onActivityStopped(activity);
+    clock.advance(60 * 1000 - 1);
+    tracker.onActivityStarted(activity);
+
+    assertEquals(1000L, intercept(sessionId, "foo"));
+  }
+
+  @Test
+  public void startsNewSessionAfterTimeout() {
+    tracker.onActivityStarted(activity);
+    tracker.onActivityStopped(activity);
+    clock.advance(60 * 1000);
+    tracker.onActivityStarted(activity);
+
+    assertEquals(61000L, intercept(sessionId, "foo"));
+  }
+
+  @Test
+  public void activityTransitionsDoNotEndSession() {
+    Activity other = mock(Activity.class);
+    tracker.onActivityStarted(activity);
+    tracker.onActivityStarted(other);
+    tracker.onActivityStopped(activity);
+
+    assertEquals(1000L, intercept(sessionId, "foo"));
+  }
+
+  @Test
+  public void configurationChangesDoNotEndSession() {
+    when(activity.isChangingConfigurations()).thenReturn(true);
+    tracker.onActivityStarted(activity);
+    tracker.onActivityStopped(activity);
+
+    assertEquals(1000L, intercept(sessionId, "foo"));
+  }
+
+  @Test
+  public void ignoresLifecycleEventsWhenObservingActivities() {
+    intercept(sessionId, "Application Opened");
+
+    assertEquals(-1L, intercept(sessionId, "foo"));
+  }
+
+  @Test
+  public void lifecycleEventsWithoutApplication() {
+    AmplitudeSessionId sessionId = new AmplitudeSessionId(
+        null, AmplitudeSessionId.DEFAULT_SESSION_TIMEOUT_MILLIS, clock, null);
+
+    assertEquals(1000L, intercept(sessionId, "Application Opened"));
+    clock.advance(1000);
+    assertEquals(-1L, intercept(sessionId, "Application Backgrounded"));
+    clock.advance(1000);
+    assertEquals(1000L, intercept(sessionId, "Application Opened"));
+  }
+
+  @Test
+  public void restartWithinTimeoutResumesSavedSession() throws Exception {
+    CountingExecutor executor = new CountingExecutor();
+    File file = folder.newFile();
+    tracker = start(new SessionStore(file, executor));
+    tracker.onActivityStarted(activity);
+    clock.advance(1000);
+    tracker.onActivityStopped(activity);
+
+    clock.advance(30 * 1000);
+    Application restarted = mock(Application.class);
+    AmplitudeSessionId sessionId =
+        new AmplitudeSessionId(restarted, 60 * 1000, clock, new SessionStore(file, executor));
+    assertEquals(-1L, intercept(sessionId, "Push Received"));
+    captureTracker(restarted).onActivityStarted(activity);
+
+    assertEquals(1000L, intercept(sessionId, "foo"));
+  }
+
+  @Test
+  public void restartAfterTimeoutStartsNewSession() throws Exception {
+    CountingExecutor executor = new CountingExecutor();
+    File file = folder.newFile();
+    tracker = start(new SessionStore(file, executor));
+    tracker.onActivityStarted(activity);
+    tracker.onActivityStopped(activity);
+
+    clock.advance(60 * 1000);
+    Application restarted = mock(Application.class);
+    AmplitudeSessionId sessionId =
+        new AmplitudeSessionId(restarted, 60 * 1000, clock, new SessionStore(file, executor));
+    captureTracker(restarted).onActivityStarted(activity);
+
+    assertEquals(61000L, intercept(sessionId, "foo"));
+  }
+
+  @Test
+  public void restartAfterCrashResumesFromLastSave() throws Exception {
+    CountingExecutor executor = new CountingExecutor();
+    File file = folder.newFile();
+    Application application = mock(Application.class);
+    AmplitudeSessionId sessionId =
+        new AmplitudeSessionId(application, 60 * 1000, clock, new SessionStore(file, executor));
+    captureTracker(application).onActivityStarted(activity);
+    clock.advance(AmplitudeSessionId.SAVE_INTERVAL_MILLIS);
+    intercept(sessionId, "foo");
+
+    // Killed in the foreground, restarted 59 s after the last save.
+    clock.advance(59 * 1000);
+    Application restarted = mock(Application.class);
+    sessionId =
+        new AmplitudeSessionId(restarted, 60 * 1000, clock, new SessionStore(file, executor));
+    captureTracker(restarted).onActivityStarted(activity);
+
+    assertEquals(1000L, intercept(sessionId, "foo"));
+  }
+
+  @Test
+  public void savesAreDebounced() throws Exception {
+    CountingExecutor executor = new CountingExecutor();
+    Application application = mock(Application.class);
+    AmplitudeSessionId sessionId =
+        new AmplitudeSessionId(
+            application, 60 * 1000, clock, new SessionStore(folder.newFile(), executor));
+    captureTracker(application).onActivityStarted(activity);
+    assertEquals(1, executor.executed);
+
+    for (int i = 0; i < 100; i++) {
+      clock.advance(100);
+      intercept(sessionId, "foo");
+    }
+
+    // One save on foreground, then one per save interval.
+    assertEquals(2, executor.executed);
+  }
+
+  @Test
+  public void createdInForegroundReadsStoreOnFirstIntercept() throws Exception {
+    CountingExecutor executor = new CountingExecutor();
+    File file = folder.newFile();
+    Application application = mock(Application.class);
+    inForeground(application);
+
+    AmplitudeSessionId sessionId =
+        new AmplitudeSessionId(application, 60 * 1000, clock, new SessionStore(file, executor));
+    assertEquals(0, executor.executed);
+    assertEquals(-1L, sessionId.sessionId());
+
+    // Saved after construction, so it's only resumed if the store is read on first intercept.
+    new SessionStore(file, executor).save(500, 1000);
+    clock.advance(1000);
+    assertEquals(500L, intercept(sessionId, "foo"));
+  }
+
+  @Test
+  public void createdInForegroundStartsSessionAtRegistration() {
+    Application application = mock(Application.class);
+    inForeground(application);
+
+    AmplitudeSessionId sessionId = new AmplitudeSessionId(application, 60 * 1000, clock, null);
+    clock.advance(1000);
+
+    assertEquals(1000L, intercept(sessionId, "foo"));
+  }
+
+  @Test
+  public void unreadableStoreStartsNewSession() throws Exception {
+    File file = folder.newFile();
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(new byte[] {0, 0, 0, 1, 42});
+    out.close();
+    SessionStore store = new SessionStore(file, new CountingExecutor());
+    assertNull(store.read());
+
+    tracker = start(store);
+    tracker.onActivityStarted(activity);
+
+    assertEquals(1000L, intercept(sessionId, "foo"));
+  }
+
+  private ForegroundTracker start(SessionStore store) {
+    Application application = mock(Application.class);
+    sessionId = new AmplitudeSessionId(application, 60 * 1000, clock, store);
+    return captureTracker(application);
+  }
+
+  private static void inForeground(Application application) {
+    ApplicationInfo applicationInfo = new ApplicationInfo();
+    applicationInfo.processName = "com.example";
+    RunningAppProcessInfo process = new RunningAppProcessInfo();
+    process.processName = "com.example";
+    process.importance = RunningAppProcessInfo.IMPORTANCE_FOREGROUND;
+    ActivityManager activityManager = mock(ActivityManager.class);
+    when(activityManager.getRunningAppProcesses()).thenReturn(Collections.singletonList(process));
+    when(application.getSystemService(Context.ACTIVITY_SERVICE)).thenReturn(activityManager);
+    when(application.getApplicationInfo()).thenReturn(applicationInfo);
+  }
+
+  private static ForegroundTracker captureTracker(Application application) {
+    ArgumentCaptor<Application.ActivityLifecycleCallbacks> callbacks =
+        ArgumentCaptor.forClass(Application.ActivityLifecycleCallbacks.class);
+    verify(application).registerActivityLifecycleCallbacks(callbacks.capture());
+    return (ForegroundTracker) callbacks.getValue();
+  }
+
+  private static long intercept(AmplitudeSessionId sessionId, String event) {
+    final TrackPayload payload =
+        new TrackPayload.Builder().anonymousId("foo").event(event).build();
+    final BasePayload[] proceeded = new BasePayload[1];
+    sessionId.intercept(
+        new Middleware.Chain() {
+          @Override
+          public BasePayload payload() {
+            return payload;
+          }
+
+          @Override
+          public void proceed(BasePayload payload) {
+            proceeded[0] = payload;
+          }
+        });
+    ValueMap integration = proceeded[0].integrations().getValueMap("Actions Amplitude");
+    return integration.getLong("session_id", 0);
+  }
+
+  /** Runs writes on the calling thread and counts them. */
+  static class CountingExecutor implements Executor {
+
+    int executed;
+
+    @Override
+    public void execute(Runnable command) {
+      executed++;
+      command.run();
+    }
+  }
+}
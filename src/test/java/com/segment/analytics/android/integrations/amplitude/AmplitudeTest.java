@@ -1,6 +1,12 @@
 package com.segment.analytics.android.integrations.amplitude;
 
+import android.app.Activity;
+import android.app.ActivityManager;
+import android.app.ActivityManager.RunningAppProcessInfo;
 import android.app.Application;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
 
 import com.amplitude.api.AmplitudeClient;
 import com.amplitude.api.Identify;
@@ -20,24 +26,53 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatcher;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.segment.analytics.Analytics.LogLevel.VERBOSE;
 import static com.segment.analytics.Utils.createTraits;
-import static com.segment.analytics.android.integrations.amplitude.AmplitudeIntegration.getStringSet;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.nullable;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
@@ -45,8 +80,10 @@ import static org.mockito.MockitoAnnotations.initMocks;
 
 public class AmplitudeTest {
 
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
   @Mock Application application;
   @Mock AmplitudeClient amplitude;
+  @Mock AmplitudeClient secondary;
   @Mock Analytics analytics;
 
   private AmplitudeIntegration integration;
@@ -55,6 +92,11 @@ public class AmplitudeTest {
     public AmplitudeClient get() {
       return amplitude;
     }
+
+    @Override
+    public AmplitudeClient get(String instanceName) {
+      return secondary;
+    }
   };
 
   @Before
@@ -87,10 +129,10 @@ public class AmplitudeTest {
             .putValue("enableLocationListening", false)
             .putValue("useAdvertisingIdForDeviceId", true));
 
-    assertEquals(integration.trackAllPagesV2, true);
-    assertEquals(integration.trackAllPages, true);
-    assertEquals(integration.trackCategorizedPages, false);
-    assertEquals(integration.trackNamedPages, true);
+    assertEquals(integration.settings.trackAllPagesV2, true);
+    assertEquals(integration.settings.trackAllPages, true);
+    assertEquals(integration.settings.trackCategorizedPages, false);
+    assertEquals(integration.settings.trackNamedPages, true);
 
     verify(amplitude).initialize(application, "foo");
     verify(amplitude).enableForegroundTracking(application);
@@ -104,15 +146,29 @@ public class AmplitudeTest {
     integration =
         new AmplitudeIntegration(mockProvider, analytics, new ValueMap().putValue("apiKey", "foo"));
 
-    assertEquals(integration.trackAllPages, false);
-    assertEquals(integration.trackCategorizedPages, false);
-    assertEquals(integration.trackNamedPages, false);
+    assertEquals(integration.settings.trackAllPages, false);
+    assertEquals(integration.settings.trackCategorizedPages, false);
+    assertEquals(integration.settings.trackNamedPages, false);
 
     verify(amplitude).initialize(application, "foo");
     verify(amplitude).enableForegroundTracking(application);
     verify(amplitude).trackSessionEvents(false);
   }
 
+  @Test
+  public void updateSettings() {
+    integration.updateSettings(new ValueMap()
+        .putValue("trackAllPagesV2", false)
+        .putValue("trackNamedPages", true));
+
+    assertEquals(integration.settings.trackAllPagesV2, false);
+    assertEquals(integration.settings.trackNamedPages, true);
+
+    integration.screen((new ScreenPayload.Builder()).anonymousId("foo").name("bar").build());
+    verifyAmplitudeLoggedEvent("Viewed bar Screen", new JSONObject());
+    verifyNoMoreInteractions(amplitude);
+  }
+
   @Test
   public void track() {
     integration.track((new TrackPayload.Builder())
@@ -216,6 +272,181 @@ public class AmplitudeTest {
             .logEvent(eq("foo"), toStringEq(new JSONObject()), isNull(JSONObject.class), eq(false));
   }
 
+  @Test
+  public void trackDropsDuplicateMessageIds() {
+    integration = new AmplitudeIntegration(mockProvider, analytics,
+        new ValueMap().putValue("apiKey", "foo").putValue("messageIdDedupeWindow", 2));
+    Mockito.reset(amplitude);
+
+    TrackPayload first = new TrackPayload.Builder()
+        .anonymousId("foo").messageId("a").event("foo").properties(new Properties()).build();
+    TrackPayload second = new TrackPayload.Builder()
+        .anonymousId("foo").messageId("b").event("foo").properties(new Properties()).build();
+    integration.track(first);
+    integration.track(second);
+    integration.track(first);
+
+    verify(amplitude, times(2))
+        .logEvent(eq("foo"), toStringEq(new JSONObject()), isNull(JSONObject.class), eq(false));
+    assertEquals(1, integration.duplicateMessagesSuppressed());
+
+    // "a" falls out of the window once two newer ids have been seen.
+    integration.track(new TrackPayload.Builder()
+        .anonymousId("foo").messageId("c").event("foo").properties(new Properties()).build());
+    integration.track(first);
+
+    verify(amplitude, times(4))
+        .logEvent(eq("foo"), toStringEq(new JSONObject()), isNull(JSONObject.class), eq(false));
+    assertEquals(1, integration.duplicateMessagesSuppressed());
+  }
+
+  @Test
+  public void trackKeepsDuplicateMessageIdsByDefault() {
+    TrackPayload payload = new TrackPayload.Builder()
+        .anonymousId("foo").messageId("a").event("foo").properties(new Properties()).build();
+    integration.track(payload);
+    integration.track(payload);
+
+    verify(amplitude, times(2))
+        .logEvent(eq("foo"), toStringEq(new JSONObject()), isNull(JSONObject.class), eq(false));
+    assertEquals(0, integration.duplicateMessagesSuppressed());
+  }
+
+  @Test
+  public void trackWithAdditionalInstance() {
+    integration = new AmplitudeIntegration(mockProvider, analytics, new ValueMap()
+        .putValue("apiKey", "foo")
+        .putValue("instances", Arrays.asList(new ValueMap()
+            .putValue("name", "curated")
+            .putValue("apiKey", "bar")
+            .putValue("events", Arrays.asList("Order Completed"))
+            .putValue("eventUploadPeriodMillis", 60000))));
+
+    verify(secondary).initialize(application, "bar");
+    verify(secondary).setEventUploadPeriodMillis(60000);
+
+    Properties properties = new Properties().putRevenue(20).putValue("productId", "bar");
+    integration.track(new TrackPayload.Builder()
+        .anonymousId("foo")
+        .event("Order Completed")
+        .properties(properties)
+        .build());
+    integration.track(new TrackPayload.Builder()
+        .anonymousId("foo")
+        .event("Button Tapped")
+        .properties(new Properties())
+        .build());
+
+    verify(amplitude).logEvent(eq("Order Completed"), toStringEq(properties.toJsonObject()),
+        isNull(JSONObject.class), eq(false));
+    verify(secondary).logEvent(eq("Order Completed"), toStringEq(properties.toJsonObject()),
+        isNull(JSONObject.class), eq(false));
+    verify(secondary).logRevenue("bar", 0, 20, null, null);
+    verify(amplitude).logEvent(eq("Button Tapped"), toStringEq(new JSONObject()),
+        isNull(JSONObject.class), eq(false));
+    verify(secondary, never()).logEvent(eq("Button Tapped"), nullable(JSONObject.class),
+        nullable(JSONObject.class), anyBoolean());
+  }
+
+  @Test
+  public void additionalInstancesShareIdentity() {
+    when(amplitude.getDeviceId()).thenReturn("device");
+    integration = new AmplitudeIntegration(mockProvider, analytics, new ValueMap()
+        .putValue("apiKey", "foo")
+        .putValue("instances", Arrays.asList(new ValueMap()
+            .putValue("name", "raw")
+            .putValue("apiKey", "bar"))));
+    verify(secondary).setDeviceId("device");
+
+    Traits traits = createTraits("foo").putAge(20);
+    integration.identify(new IdentifyPayload.Builder().userId("foo").traits(traits).build());
+    integration.flush();
+    integration.reset();
+
+    verify(secondary).setUserId("foo");
+    verify(secondary).setUserProperties(toStringEq(traits.toJsonObject()));
+    verify(secondary).uploadEvents();
+    verify(secondary).setUserId(null);
+    // Both instances get the same new device id.
+    ArgumentCaptor<String> deviceId = ArgumentCaptor.forClass(String.class);
+    verify(amplitude).setDeviceId(deviceId.capture());
+    verify(secondary).setDeviceId(deviceId.getValue());
+    verify(amplitude, never()).regenerateDeviceId();
+    verify(secondary, never()).regenerateDeviceId();
+  }
+
+  @Test
+  public void additionalInstancesGetDeviceIdOnceInitialized() {
+    integration = new AmplitudeIntegration(mockProvider, analytics, new ValueMap()
+        .putValue("apiKey", "foo")
+        .putValue("instances", Arrays.asList(new ValueMap()
+            .putValue("name", "raw")
+            .putValue("apiKey", "bar"))));
+    // The default instance is still initializing.
+    verify(secondary, never()).setDeviceId(anyString());
+
+    when(amplitude.getDeviceId()).thenReturn("device");
+    TrackPayload track =
+        new TrackPayload.Builder().anonymousId("foo").event("foo").properties(new Properties())
+            .build();
+    integration.track(track);
+    integration.track(track);
+
+    InOrder inOrder = inOrder(secondary);
+    inOrder.verify(secondary).setDeviceId("device");
+    inOrder.verify(secondary, times(2)).logEvent(eq("foo"), toStringEq(new JSONObject()),
+        isNull(JSONObject.class), eq(false));
+    verify(secondary).setDeviceId(anyString());
+  }
+
+  @Test
+  public void additionalInstancesAreConfiguredLikeTheDefault() {
+    integration = new AmplitudeIntegration(mockProvider, analytics, new ValueMap()
+        .putValue("apiKey", "foo")
+        .putValue("trackSessionEvents", true)
+        .putValue("enableLocationListening", false)
+        .putValue("useAdvertisingIdForDeviceId", true)
+        .putValue("instances", Arrays.asList(new ValueMap()
+            .putValue("name", "raw")
+            .putValue("apiKey", "bar"))));
+
+    verify(secondary).trackSessionEvents(true);
+    verify(secondary).disableLocationListening();
+    verify(secondary).useAdvertisingIdForDeviceId();
+  }
+
+  @Test
+  public void trackWithSegmentTimestamp() {
+    integration.updateSettings(new ValueMap().putValue("useSegmentTimestamp", true));
+    Date timestamp = new Date(1500000000000L);
+
+    integration.track(new TrackPayload.Builder()
+        .anonymousId("foo")
+        .event("foo")
+        .timestamp(timestamp)
+        .properties(new Properties())
+        .build());
+
+    verify(amplitude).logEvent(eq("foo"), toStringEq(new JSONObject()), isNull(JSONObject.class),
+        eq(1500000000000L), eq(false));
+    verifyNoMoreInteractions(amplitude);
+  }
+
+  @Test
+  public void screenWithSegmentTimestamp() throws JSONException {
+    integration.updateSettings(new ValueMap().putValue("useSegmentTimestamp", true));
+    Date timestamp = new Date(1500000000000L);
+
+    integration.screen(new ScreenPayload.Builder()
+        .anonymousId("foo")
+        .name("foo")
+        .timestamp(timestamp)
+        .build());
+
+    verify(amplitude).logEvent(eq("Loaded a Screen"), toStringEq(new JSONObject().put("name", "foo")),
+        isNull(JSONObject.class), eq(1500000000000L), eq(false));
+  }
+
   @SuppressWarnings("deprecation")
   @Test
   public void trackWithRevenue() {
@@ -234,6 +465,20 @@ public class AmplitudeTest {
     verify(amplitude).logRevenue("bar", 10, 20, "baz", "qux");
   }
 
+  @SuppressWarnings("deprecation")
+  @Test
+  public void trackWithRevenueFromStrings() {
+    Properties properties = new Properties()
+        .putValue("revenue", "0")
+        .putValue("total", "12.5")
+        .putValue("productId", 42)
+        .putValue("quantity", "3");
+
+    integration.track(new TrackPayloadBuilder().event("foo").properties(properties).build());
+
+    verify(amplitude).logRevenue("42", 3, 12.5, null, null);
+  }
+
   @SuppressWarnings("deprecation")
   @Test
   public void trackWithTotal() {
@@ -253,7 +498,7 @@ public class AmplitudeTest {
 
   @Test
   public void trackWithRevenueV2() {
-    integration.useLogRevenueV2 = true;
+    integration.updateSettings(new ValueMap().putValue("useLogRevenueV2", true));
     Properties properties = new Properties()
         .putRevenue(20)
         .putValue("productId", "bar")
@@ -294,7 +539,7 @@ public class AmplitudeTest {
   }
 
   @Test public void trackWithRevenueV2PriceAndQuantity() {
-    integration.useLogRevenueV2 = true;
+    integration.updateSettings(new ValueMap().putValue("useLogRevenueV2", true));
 
     Properties properties = new Properties()
             .putRevenue(20)
@@ -319,7 +564,7 @@ public class AmplitudeTest {
 
   @Test
   public void trackWithTotalV2() {
-    integration.useLogRevenueV2 = true;
+    integration.updateSettings(new ValueMap().putValue("useLogRevenueV2", true));
 
     Properties properties = new Properties()
         .putTotal(20)
@@ -346,7 +591,7 @@ public class AmplitudeTest {
 
   @Test
   public void trackWithTotalV2Price() {
-    integration.useLogRevenueV2 = true;
+    integration.updateSettings(new ValueMap().putValue("useLogRevenueV2", true));
 
     Properties properties = new Properties()
             .putTotal(20)
@@ -373,7 +618,7 @@ public class AmplitudeTest {
 
   @Test
   public void trackWithTotalV2PriceAndQuantity() {
-    integration.useLogRevenueV2 = true;
+    integration.updateSettings(new ValueMap().putValue("useLogRevenueV2", true));
 
     Properties properties = new Properties()
             .putTotal(20)
@@ -398,6 +643,95 @@ public class AmplitudeTest {
     verify(amplitude).logRevenueV2(expectedRevenue);
   }
 
+  @Test
+  public void trackWithRevenuePerProduct() {
+    integration.updateSettings(new ValueMap()
+        .putValue("useLogRevenueV2", true)
+        .putValue("trackRevenuePerProduct", true));
+
+    Properties properties = new Properties()
+        .putRevenue(30)
+        .putValue("revenueType", "purchase")
+        .putValue("products", Arrays.asList(
+            new ValueMap().putValue("product_id", "bar").putValue("price", 10.0).putValue("quantity", 2),
+            new ValueMap().putValue("productId", "baz").putValue("price", 10.0),
+            new ValueMap().putValue("productId", "qux")));
+
+    integration.track((new TrackPayload.Builder()).anonymousId("anonId").event("Order Completed").properties(properties).build());
+
+    verify(amplitude).logEvent(eq("Order Completed"), toStringEq(properties.toJsonObject()),
+        isNull(JSONObject.class), eq(false));
+    verify(amplitude).logRevenueV2(revenueEq(new Revenue()
+        .setProductId("bar")
+        .setPrice(10)
+        .setQuantity(2)
+        .setRevenueType("purchase")
+        .setEventProperties(properties.toJsonObject())));
+    verify(amplitude).logRevenueV2(revenueEq(new Revenue()
+        .setProductId("baz")
+        .setPrice(10)
+        .setQuantity(1)
+        .setRevenueType("purchase")
+        .setEventProperties(properties.toJsonObject())));
+    verifyNoMoreInteractions(amplitude);
+  }
+
+  @Test
+  public void trackWithRevenuePerProductFromStrings() {
+    integration.updateSettings(new ValueMap()
+        .putValue("useLogRevenueV2", true)
+        .putValue("trackRevenuePerProduct", true));
+
+    Properties properties = new Properties()
+        .putValue("products", Arrays.asList(
+            new ValueMap().putValue("productId", "bar").putValue("price", "10.00")
+                .putValue("quantity", "3")));
+
+    integration.track((new TrackPayload.Builder()).anonymousId("anonId").event("Order Completed").properties(properties).build());
+
+    verify(amplitude).logRevenueV2(revenueEq(new Revenue()
+        .setProductId("bar")
+        .setPrice(10)
+        .setQuantity(3)
+        .setEventProperties(properties.toJsonObject())));
+  }
+
+  @Test
+  public void trackWithRevenuePerProductFallsBackToEventRevenue() {
+    integration.updateSettings(new ValueMap()
+        .putValue("useLogRevenueV2", true)
+        .putValue("trackRevenuePerProduct", true));
+
+    Properties properties = new Properties()
+        .putRevenue(30)
+        .putValue("products", Arrays.asList(
+            new ValueMap().putValue("productId", "bar").putValue("price", "free")));
+
+    integration.track((new TrackPayload.Builder()).anonymousId("anonId").event("Order Completed").properties(properties).build());
+
+    verify(amplitude).logRevenueV2(revenueEq(new Revenue()
+        .setPrice(30)
+        .setQuantity(1)
+        .setEventProperties(properties.toJsonObject())));
+  }
+
+  @Test
+  public void trackWithRevenuePerProductLimit() {
+    integration.updateSettings(new ValueMap()
+        .putValue("useLogRevenueV2", true)
+        .putValue("trackRevenuePerProduct", true)
+        .putValue("maxRevenueProducts", 1));
+
+    Properties properties = new Properties()
+        .putValue("products", Arrays.asList(
+            new ValueMap().putValue("productId", "bar").putValue("price", 10.0),
+            new ValueMap().putValue("productId", "baz").putValue("price", 10.0)));
+
+    integration.track((new TrackPayload.Builder()).anonymousId("anonId").event("Order Completed").properties(properties).build());
+
+    verify(amplitude, times(1)).logRevenueV2(any(Revenue.class));
+  }
+
   @Test
   public void identify() {
     Traits traits = createTraits("foo").putAge(20).putFirstName("bar");
@@ -453,7 +787,7 @@ public class AmplitudeTest {
   public void identifyWithIncrementedTraits() {
     ValueMap settings = new ValueMap()
         .putValue("traitsToIncrement", Arrays.asList("double", "float", "integer", "long", "string"));
-    integration.traitsToIncrement = getStringSet(settings, "traitsToIncrement");
+    integration.updateSettings(settings);
 
     String[] strArray = new String[]{"test"};
     double d = 100.0;
@@ -490,7 +824,7 @@ public class AmplitudeTest {
   public void identifyWithSetOnce() {
     ValueMap settings = new ValueMap()
         .putValue("traitsToSetOnce", Arrays.asList("double", "float", "integer", "long", "string"));
-    integration.traitsToSetOnce = getStringSet(settings, "traitsToSetOnce");
+    integration.updateSettings(settings);
 
     String[] strArray = new String[]{"test"};
     double d = 100.0;
@@ -528,10 +862,11 @@ public class AmplitudeTest {
   // Category is deprecated, but we need to support it for Amplitude
   @SuppressWarnings("deprecation")
   public void screen() {
-    integration.trackAllPagesV2 = false;
-    integration.trackAllPages = false;
-    integration.trackCategorizedPages = false;
-    integration.trackNamedPages = false;
+    integration.updateSettings(new ValueMap()
+        .putValue("trackAllPagesV2", false)
+        .putValue("trackAllPages", false)
+        .putValue("trackCategorizedPages", false)
+        .putValue("trackNamedPages", false));
 
     integration.screen((new ScreenPayload.Builder()).anonymousId("foo").category("foo").build());
 
@@ -540,10 +875,11 @@ public class AmplitudeTest {
 
   @Test
   public void screenTrackNamedPagesWithName() {
-    integration.trackAllPagesV2 = false;
-    integration.trackAllPages = false;
-    integration.trackCategorizedPages = false;
-    integration.trackNamedPages = true;
+    integration.updateSettings(new ValueMap()
+        .putValue("trackAllPagesV2", false)
+        .putValue("trackAllPages", false)
+        .putValue("trackCategorizedPages", false)
+        .putValue("trackNamedPages", true));
 
     integration.screen((new ScreenPayload.Builder()).anonymousId("foo").name("bar").build());
     verifyAmplitudeLoggedEvent("Viewed bar Screen", new JSONObject());
@@ -553,10 +889,11 @@ public class AmplitudeTest {
   // Category is deprecated, but we need to support it for Amplitude
   @SuppressWarnings("deprecation")
   public void screenTrackNamedPagesWithCategory() {
-    integration.trackAllPagesV2 = false;
-    integration.trackAllPages = false;
-    integration.trackCategorizedPages = false;
-    integration.trackNamedPages = true;
+    integration.updateSettings(new ValueMap()
+        .putValue("trackAllPagesV2", false)
+        .putValue("trackAllPages", false)
+        .putValue("trackCategorizedPages", false)
+        .putValue("trackNamedPages", true));
 
     integration.screen((new ScreenPayload.Builder()).anonymousId("foo").category("foo").build());
     verifyNoMoreInteractions(amplitude);
@@ -566,10 +903,11 @@ public class AmplitudeTest {
   // Category is deprecated, but we need to support it for Amplitude
   @SuppressWarnings("deprecation")
   public void screenTrackCategorizedPages() {
-    integration.trackAllPagesV2 = false;
-    integration.trackAllPages = false;
-    integration.trackCategorizedPages = true;
-    integration.trackNamedPages = false;
+    integration.updateSettings(new ValueMap()
+        .putValue("trackAllPagesV2", false)
+        .putValue("trackAllPages", false)
+        .putValue("trackCategorizedPages", true)
+        .putValue("trackNamedPages", false));
 
     integration.screen((new ScreenPayload.Builder()).anonymousId("foo").category("foo").build());
     verifyAmplitudeLoggedEvent("Viewed foo Screen", new JSONObject());
@@ -582,10 +920,11 @@ public class AmplitudeTest {
   // Category is deprecated, but we need to support it for Amplitude
   @SuppressWarnings("deprecation")
   public void screenTrackAllPages() {
-    integration.trackAllPagesV2 = false;
-    integration.trackAllPages = true;
-    integration.trackCategorizedPages = false;
-    integration.trackNamedPages = false;
+    integration.updateSettings(new ValueMap()
+        .putValue("trackAllPagesV2", false)
+        .putValue("trackAllPages", true)
+        .putValue("trackCategorizedPages", false)
+        .putValue("trackNamedPages", false));
 
     integration.screen((new ScreenPayload.Builder()).anonymousId("foo").category("foo").build());
     verifyAmplitudeLoggedEvent("Viewed foo Screen", new JSONObject());
@@ -606,6 +945,45 @@ public class AmplitudeTest {
         .put("name", "foo").put("bar", "baz"));
   }
 
+  @Test
+  public void screenDebounce() throws JSONException {
+    TestClock clock = new TestClock();
+    integration = new AmplitudeIntegration(mockProvider, clock, analytics, new ValueMap()
+        .putValue("apiKey", "foo")
+        .putValue("screenDebounceMillis", 500));
+    Mockito.reset(amplitude);
+
+    ScreenPayload home = new ScreenPayload.Builder().anonymousId("foo").name("Home").build();
+    integration.screen(home);
+    clock.advance(300);
+    integration.screen(home);
+    integration.screen(new ScreenPayload.Builder().anonymousId("foo").name("Search").build());
+
+    verifyAmplitudeLoggedEvent("Loaded a Screen", new JSONObject().put("name", "Home"));
+    verifyAmplitudeLoggedEvent("Loaded a Screen", new JSONObject().put("name", "Search"));
+
+    clock.advance(300);
+    integration.screen(home);
+    verify(amplitude, times(2)).logEvent(eq("Loaded a Screen"),
+        toStringEq(new JSONObject().put("name", "Home")), isNull(JSONObject.class), eq(false));
+  }
+
+  @Test
+  public void screenDebounceDoesNotSuppressHashCollisions() throws JSONException {
+    TestClock clock = new TestClock();
+    integration = new AmplitudeIntegration(mockProvider, clock, analytics, new ValueMap()
+        .putValue("apiKey", "foo")
+        .putValue("screenDebounceMillis", 500));
+    Mockito.reset(amplitude);
+    assertEquals("Aa".hashCode(), "BB".hashCode());
+
+    integration.screen(new ScreenPayload.Builder().anonymousId("foo").name("Aa").build());
+    integration.screen(new ScreenPayload.Builder().anonymousId("foo").name("BB").build());
+
+    verifyAmplitudeLoggedEvent("Loaded a Screen", new JSONObject().put("name", "Aa"));
+    verifyAmplitudeLoggedEvent("Loaded a Screen", new JSONObject().put("name", "BB"));
+  }
+
   @Test
   public void group() {
     GroupPayload payload = (new GroupPayload.Builder())
@@ -644,8 +1022,9 @@ public class AmplitudeTest {
 
   @Test
   public void groupWithGroupNameSettings() {
-    integration.groupTypeTrait = "company";
-    integration.groupValueTrait = "companyType";
+    integration.updateSettings(new ValueMap()
+        .putValue("groupTypeTrait", "company")
+        .putValue("groupTypeValue", "companyType"));
 
     Traits traits = new Traits().putValue("company", "Segment").putValue("companyType", "data").putValue("members", 80);
 
@@ -665,6 +1044,494 @@ public class AmplitudeTest {
     verify(amplitude).groupIdentify(eq("Segment"), eq("data"), identifyEq(expectedIdentify));
   }
 
+  @Test
+  public void groupBatching() {
+    integration = new AmplitudeIntegration(mockProvider, analytics, new ValueMap()
+        .putValue("apiKey", "foo")
+        .putValue("groupBatchWindowMillis", 1000)
+        .putValue("groupTypeTrait", "type")
+        .putValue("groupTypeValue", "name"));
+    Mockito.reset(amplitude);
+
+    Traits shared = new Traits().putValue("type", "team").putValue("name", "ios");
+    Traits android = new Traits().putValue("type", "team").putValue("name", "android");
+    Traits workspace = new Traits().putValue("type", "workspace").putValue("name", "acme");
+    integration.group(new GroupPayload.Builder().userId("foo").groupId("a").traits(shared).build());
+    integration.group(new GroupPayload.Builder().userId("foo").groupId("b").traits(android).build());
+    integration.group(new GroupPayload.Builder().userId("foo").groupId("c").traits(workspace).build());
+    integration.group(new GroupPayload.Builder().userId("foo").groupId("a").traits(shared).build());
+
+    verifyNoMoreInteractions(amplitude);
+
+    integration.track(new TrackPayload.Builder().userId("foo").event("Viewed Team").build());
+
+    InOrder inOrder = inOrder(amplitude);
+    // Same membership as unbatched calls: the group of each type added last.
+    inOrder.verify(amplitude).setGroup("team", "ios");
+    inOrder.verify(amplitude).setGroup("workspace", "acme");
+    Identify androidIdentify = new Identify().set("library", "segment")
+        .set("group_properties", android.toJsonObject());
+    inOrder.verify(amplitude)
+        .groupIdentify(eq("team"), eq("android"), identifyEq(androidIdentify));
+    Identify sharedIdentify = new Identify().set("library", "segment")
+        .set("group_properties", shared.toJsonObject());
+    inOrder.verify(amplitude).groupIdentify(eq("team"), eq("ios"), identifyEq(sharedIdentify));
+    Identify workspaceIdentify = new Identify().set("library", "segment")
+        .set("group_properties", workspace.toJsonObject());
+    inOrder.verify(amplitude)
+        .groupIdentify(eq("workspace"), eq("acme"), identifyEq(workspaceIdentify));
+    inOrder.verify(amplitude).logEvent(eq("Viewed Team"), any(JSONObject.class),
+        nullable(JSONObject.class), eq(false));
+    verify(amplitude, times(2)).setGroup(anyString(), any());
+    verify(amplitude, times(3)).groupIdentify(anyString(), anyString(), any(Identify.class));
+  }
+
+  @Test
+  public void groupBatchFlushesWhenFull() {
+    integration = new AmplitudeIntegration(mockProvider, analytics, new ValueMap()
+        .putValue("apiKey", "foo")
+        .putValue("groupBatchWindowMillis", 1000));
+    Mockito.reset(amplitude);
+
+    for (int i = 0; i < GroupBatcher.MAX_PENDING; i++) {
+      integration.group(new GroupPayload.Builder().userId("foo").groupId("g" + i).build());
+    }
+
+    verify(amplitude).setGroup("[Segment] Group", "g" + (GroupBatcher.MAX_PENDING - 1));
+    verify(amplitude, times(GroupBatcher.MAX_PENDING))
+        .groupIdentify(eq("[Segment] Group"), anyString(), any(Identify.class));
+
+    integration.flush();
+    verify(amplitude).setGroup(anyString(), any());
+  }
+
+  @Test
+  public void eventBuffer() {
+    integration = new AmplitudeIntegration(mockProvider, analytics, new ValueMap()
+        .putValue("apiKey", "foo")
+        .putValue("eventBufferCapacity", 16));
+    Mockito.reset(amplitude);
+
+    integration.identify(new IdentifyPayload.Builder().userId("foo").build());
+    integration.track(new TrackPayload.Builder().userId("foo").event("bar").build());
+    integration.reset();
+    integration.flush();
+
+    InOrder inOrder = inOrder(amplitude);
+    inOrder.verify(amplitude, timeout(1000)).setUserId("foo");
+    inOrder.verify(amplitude, timeout(1000)).logEvent(eq("bar"), any(JSONObject.class),
+        nullable(JSONObject.class), eq(false));
+    inOrder.verify(amplitude, timeout(1000)).setUserId(null);
+    inOrder.verify(amplitude, timeout(1000)).uploadEvents();
+    assertEquals(0, integration.droppedEvents());
+  }
+
+  @Test
+  public void trimMemoryUploadsBufferedEvents() throws InterruptedException {
+    integration = new AmplitudeIntegration(mockProvider, analytics, new ValueMap()
+        .putValue("apiKey", "foo")
+        .putValue("eventBufferCapacity", 16));
+    ArgumentCaptor<ComponentCallbacks2> callbacks =
+        ArgumentCaptor.forClass(ComponentCallbacks2.class);
+    verify(application, atLeastOnce()).registerComponentCallbacks(callbacks.capture());
+    MemoryBudget budget = (MemoryBudget) callbacks.getValue();
+    Mockito.reset(amplitude);
+
+    // Hold the buffer's thread in the first event so the others wait in the buffer.
+    final CountDownLatch logging = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws InterruptedException {
+        logging.countDown();
+        release.await();
+        return null;
+      }
+    }).when(amplitude).logEvent(eq("first"), any(JSONObject.class), nullable(JSONObject.class),
+        anyBoolean());
+    integration.track(new TrackPayload.Builder().userId("foo").event("first").build());
+    assertTrue(logging.await(1, SECONDS));
+    integration.track(new TrackPayload.Builder().userId("foo").event("second").build());
+    assertTrue(budget.retainedBytes() > 0);
+
+    budget.onLowMemory();
+    budget.onLowMemory();
+    release.countDown();
+
+    InOrder inOrder = inOrder(amplitude);
+    inOrder.verify(amplitude, timeout(1000)).logEvent(eq("second"), any(JSONObject.class),
+        nullable(JSONObject.class), eq(false));
+    inOrder.verify(amplitude, timeout(1000)).uploadEvents();
+    // Trimming twice before the upload ran queues it once.
+    Thread.sleep(50);
+    verify(amplitude, times(1)).uploadEvents();
+  }
+
+  @Test
+  public void encodedEventBuffer() throws JSONException {
+    integration = new AmplitudeIntegration(mockProvider, analytics, new ValueMap()
+        .putValue("apiKey", "foo")
+        .putValue("eventBufferCapacity", 16)
+        .putValue("encodeBufferedEvents", true));
+    Mockito.reset(amplitude);
+
+    integration.track(new TrackPayload.Builder().userId("foo").event("bar")
+        .properties(new Properties()
+            .putValue("count", 3)
+            .putValue("item", new ValueMap().putValue("sku", "A1").putValue("price", 9.5))
+            .putValue("tags", Arrays.asList("new", null)))
+        .build());
+
+    JSONObject properties = new JSONObject()
+        .put("count", 3)
+        .put("item", new JSONObject().put("sku", "A1").put("price", 9.5))
+        .put("tags", new JSONArray().put("new").put(JSONObject.NULL));
+    verify(amplitude, timeout(1000)).logEvent(eq("bar"), toStringEq(properties),
+        nullable(JSONObject.class), eq(false));
+  }
+
+  @Test
+  public void journaledEventsAreReplayedOnStart() throws InterruptedException {
+    File file = new File(folder.getRoot(), EventJournal.FILE_NAME);
+    journal(file).append(BufferedEvent.track(
+        new TrackPayload.Builder().userId("foo").event("bar").build(), "Amplitude", 0, null,
+        false));
+    when(application.getFilesDir()).thenReturn(folder.getRoot());
+
+    integration = new AmplitudeIntegration(mockProvider, analytics, new ValueMap()
+        .putValue("apiKey", "foo")
+        .putValue("eventBufferCapacity", 16)
+        .putValue("journalEvents", true));
+    integration.track(new TrackPayload.Builder().userId("foo").event("baz").build());
+
+    InOrder inOrder = inOrder(amplitude);
+    inOrder.verify(amplitude, timeout(1000)).logEvent(eq("bar"), any(JSONObject.class),
+        nullable(JSONObject.class), eq(false));
+    inOrder.verify(amplitude, timeout(1000)).logEvent(eq("baz"), any(JSONObject.class),
+        nullable(JSONObject.class), eq(false));
+    // Both were handed off, so a later start has nothing to replay.
+    int pending = -1;
+    for (int i = 0; i < 100 && pending != 0; i++) {
+      Thread.sleep(10);
+      pending = journal(file).replay().size();
+    }
+    assertEquals(0, pending);
+  }
+
+  private static EventJournal journal(File file) {
+    EventJournal journal = new EventJournal(file, 4096, Logger.with(VERBOSE),
+        new AmplitudeSessionIdTest.CountingExecutor());
+    journal.open();
+    return journal;
+  }
+
+  @Test
+  public void uploadsAfterByteThreshold() {
+    integration.updateSettings(new ValueMap().putValue("uploadThresholdBytes", 100));
+    // {"bar":"<50 characters>"}
+    Properties properties = new Properties().putValue("bar", new String(new char[50]));
+    assertEquals(61, PayloadSize.estimate(properties));
+    TrackPayload payload =
+        new TrackPayloadBuilder().event("foo").properties(properties).build();
+
+    integration.track(payload);
+    verify(amplitude, never()).uploadEvents();
+
+    integration.track(payload);
+    verify(amplitude).uploadEvents();
+
+    integration.track(payload);
+    verify(amplitude).uploadEvents();
+  }
+
+  @Test
+  public void adaptiveUploads() {
+    TestClock clock = new TestClock();
+    integration = new AmplitudeIntegration(mockProvider, clock, analytics, new ValueMap()
+        .putValue("apiKey", "foo")
+        .putValue("adaptiveUploads", true)
+        .putValue("minEventUploadThreshold", 5)
+        .putValue("maxEventUploadPeriodMillis", 30000));
+    TrackPayload payload = new TrackPayloadBuilder().event("foo").build();
+
+    integration.track(payload);
+    clock.advance(UploadTuner.BUCKET_MILLIS);
+    integration.track(payload);
+
+    verify(amplitude).setEventUploadThreshold(5);
+    verify(amplitude).setEventUploadPeriodMillis(10000);
+  }
+
+  @Test
+  public void flushWhileOfflineUploadsOnceReconnected() {
+    FakeConnectivity connectivity = new FakeConnectivity();
+    integration = new AmplitudeIntegration(mockProvider, Clock.REAL, connectivity, analytics,
+        new ValueMap().putValue("apiKey", "foo"));
+    connectivity.setConnected(false);
+
+    integration.flush();
+    integration.flush();
+    integration.flush();
+    verify(amplitude, never()).uploadEvents();
+
+    connectivity.setConnected(true);
+    verify(amplitude).uploadEvents();
+
+    connectivity.setConnected(false);
+    connectivity.setConnected(true);
+    verify(amplitude).uploadEvents();
+
+    integration.flush();
+    verify(amplitude, times(2)).uploadEvents();
+  }
+
+  @Test
+  public void lifecycleUploads() {
+    integration = new AmplitudeIntegration(mockProvider, analytics, new ValueMap()
+        .putValue("apiKey", "foo")
+        .putValue("lifecycleUploads", true)
+        .putValue("foregroundEventUploadThreshold", 200));
+    verify(amplitude).setFlushEventsOnClose(false);
+    ArgumentCaptor<Application.ActivityLifecycleCallbacks> callbacks =
+        ArgumentCaptor.forClass(Application.ActivityLifecycleCallbacks.class);
+    verify(application).registerActivityLifecycleCallbacks(callbacks.capture());
+    Activity activity = mock(Activity.class);
+
+    callbacks.getValue().onActivityStarted(activity);
+    verify(amplitude).setEventUploadThreshold(200);
+    verify(amplitude).setEventUploadPeriodMillis(60000);
+    verify(amplitude, never()).uploadEvents();
+
+    // A configuration change isn't a transition to the background.
+    when(activity.isChangingConfigurations()).thenReturn(true);
+    callbacks.getValue().onActivityStopped(activity);
+    callbacks.getValue().onActivityStarted(activity);
+    verify(amplitude, never()).uploadEvents();
+
+    when(activity.isChangingConfigurations()).thenReturn(false);
+    callbacks.getValue().onActivityStopped(activity);
+    verify(amplitude).uploadEvents();
+    verify(amplitude).setEventUploadThreshold(30);
+    verify(amplitude).setEventUploadPeriodMillis(30000);
+  }
+
+  @Test
+  public void lifecycleUploadsWhenCreatedInForeground() {
+    // The launch activity was started before the integration was created.
+    ApplicationInfo applicationInfo = new ApplicationInfo();
+    applicationInfo.processName = "com.example";
+    RunningAppProcessInfo process = new RunningAppProcessInfo();
+    process.processName = "com.example";
+    process.importance = RunningAppProcessInfo.IMPORTANCE_FOREGROUND;
+    ActivityManager activityManager = mock(ActivityManager.class);
+    when(activityManager.getRunningAppProcesses()).thenReturn(Collections.singletonList(process));
+    when(application.getSystemService(Context.ACTIVITY_SERVICE)).thenReturn(activityManager);
+    when(application.getApplicationInfo()).thenReturn(applicationInfo);
+
+    integration = new AmplitudeIntegration(mockProvider, analytics, new ValueMap()
+        .putValue("apiKey", "foo")
+        .putValue("lifecycleUploads", true)
+        .putValue("foregroundEventUploadThreshold", 200));
+    verify(amplitude).setEventUploadThreshold(200);
+    ArgumentCaptor<Application.ActivityLifecycleCallbacks> callbacks =
+        ArgumentCaptor.forClass(Application.ActivityLifecycleCallbacks.class);
+    verify(application).registerActivityLifecycleCallbacks(callbacks.capture());
+    Activity launch = mock(Activity.class);
+    Activity next = mock(Activity.class);
+
+    // Moving to another activity isn't a transition to the background.
+    callbacks.getValue().onActivityStarted(next);
+    callbacks.getValue().onActivityStopped(launch);
+    verify(amplitude, never()).uploadEvents();
+
+    callbacks.getValue().onActivityStopped(next);
+    verify(amplitude).uploadEvents();
+    verify(amplitude).setEventUploadThreshold(30);
+  }
+
+  @Test
+  public void superProperties() throws JSONException {
+    Map<String, Object> superProperties = new HashMap<>();
+    superProperties.put("build", 42);
+    superProperties.put("screen", "Unknown");
+    superProperties.put("experiments", new ValueMap().putValue("onboarding", "b"));
+    integration.setSuperProperties(superProperties);
+
+    integration.track(new TrackPayloadBuilder().event("foo")
+        .properties(new Properties().putValue("screen", "Home")).build());
+    integration.setSuperProperties(null);
+    integration.track(new TrackPayloadBuilder().event("bar").build());
+
+    ArgumentCaptor<JSONObject> properties = ArgumentCaptor.forClass(JSONObject.class);
+    verify(amplitude).logEvent(eq("foo"), properties.capture(), nullable(JSONObject.class),
+        eq(false));
+    assertEquals(3, properties.getValue().length());
+    assertEquals("Home", properties.getValue().getString("screen"));
+    assertEquals(42, properties.getValue().getInt("build"));
+    assertEquals("b", properties.getValue().getJSONObject("experiments").getString("onboarding"));
+
+    verify(amplitude).logEvent(eq("bar"), properties.capture(), nullable(JSONObject.class),
+        eq(false));
+    assertEquals(0, properties.getValue().length());
+  }
+
+  @Test
+  public void ingest() throws InterruptedException {
+    integration = new AmplitudeIntegration(mockProvider, analytics, new ValueMap()
+        .putValue("apiKey", "foo")
+        .putValue("eventBufferCapacity", 16));
+    Mockito.reset(amplitude);
+    List<TrackPayload> payloads = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      payloads.add(new TrackPayloadBuilder().event("foo " + i).build());
+    }
+    final List<Integer> chunks = new ArrayList<>();
+    final CountDownLatch done = new CountDownLatch(3);
+
+    integration.ingest(payloads.iterator(), 2, new AmplitudeIntegration.IngestListener() {
+      @Override
+      public void onChunk(int events, long elapsedNanos) {
+        chunks.add(events);
+        done.countDown();
+      }
+    });
+
+    assertTrue(done.await(1, SECONDS));
+    assertEquals(Arrays.asList(2, 2, 1), chunks);
+    InOrder inOrder = inOrder(amplitude);
+    for (int chunk = 0; chunk < 3; chunk++) {
+      for (int i = chunk * 2; i < Math.min(chunk * 2 + 2, 5); i++) {
+        inOrder.verify(amplitude).logEvent(eq("foo " + i), any(JSONObject.class),
+            nullable(JSONObject.class), eq(false));
+      }
+      inOrder.verify(amplitude).uploadEvents();
+    }
+    verify(amplitude, never()).setOffline(anyBoolean());
+    verify(amplitude, never()).setEventUploadThreshold(anyInt());
+  }
+
+  @Test
+  public void ingestWhileOfflineUploadsOnceReconnected() throws InterruptedException {
+    FakeConnectivity connectivity = new FakeConnectivity();
+    integration = new AmplitudeIntegration(mockProvider, Clock.REAL, connectivity, analytics,
+        new ValueMap().putValue("apiKey", "foo").putValue("eventBufferCapacity", 16));
+    connectivity.setConnected(false);
+    Mockito.reset(amplitude);
+    final CountDownLatch done = new CountDownLatch(2);
+
+    integration.ingest(Arrays.asList(new TrackPayloadBuilder().event("foo").build(),
+        new TrackPayloadBuilder().event("bar").build()).iterator(), 1,
+        new AmplitudeIntegration.IngestListener() {
+          @Override
+          public void onChunk(int events, long elapsedNanos) {
+            done.countDown();
+          }
+        });
+    assertTrue(done.await(1, SECONDS));
+
+    verify(amplitude, never()).uploadEvents();
+    verify(amplitude, never()).setOffline(anyBoolean());
+    connectivity.setConnected(true);
+    verify(amplitude, timeout(1000)).uploadEvents();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void ingestNeedsEventBuffer() {
+    integration.ingest(Collections.<TrackPayload>emptyList());
+  }
+
+  @Test
+  public void ingestStreamsPayloads() throws InterruptedException {
+    integration = new AmplitudeIntegration(mockProvider, analytics, new ValueMap()
+        .putValue("apiKey", "foo")
+        .putValue("eventBufferCapacity", 16));
+    Mockito.reset(amplitude);
+    // Hold the buffer's thread in the first event so the chunks back up.
+    final CountDownLatch logging = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws InterruptedException {
+        logging.countDown();
+        release.await();
+        return null;
+      }
+    }).when(amplitude).logEvent(eq("first"), any(JSONObject.class), nullable(JSONObject.class),
+        eq(false));
+    final AtomicInteger read = new AtomicInteger();
+    final Iterator<TrackPayload> payloads = new Iterator<TrackPayload>() {
+      @Override
+      public boolean hasNext() {
+        return read.get() < 100;
+      }
+
+      @Override
+      public TrackPayload next() {
+        return new TrackPayloadBuilder().event(read.getAndIncrement() == 0 ? "first" : "foo")
+            .build();
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        integration.ingest(payloads, 10, null);
+      }
+    });
+    thread.start();
+
+    assertTrue(logging.await(1, SECONDS));
+    // One chunk is being logged and one waits, so the third one waits to be queued.
+    thread.join(200);
+    assertTrue(thread.isAlive());
+    assertEquals(30, read.get());
+    assertEquals(1, integration.bufferedOperations());
+
+    release.countDown();
+    thread.join(1000);
+    assertFalse(thread.isAlive());
+    verify(amplitude, timeout(1000).times(99)).logEvent(eq("foo"), any(JSONObject.class),
+        nullable(JSONObject.class), eq(false));
+  }
+
+  @Test
+  public void ingestFromAnotherThread() throws InterruptedException {
+    integration = new AmplitudeIntegration(mockProvider, analytics, new ValueMap()
+        .putValue("apiKey", "foo")
+        .putValue("eventBufferCapacity", 1024)
+        .putValue("messageIdDedupeWindow", 1024));
+    Mockito.reset(amplitude);
+    final List<TrackPayload> payloads = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      payloads.add(new TrackPayloadBuilder().event("ingested").build());
+    }
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        integration.ingest(payloads.iterator(), 50, null);
+      }
+    });
+
+    thread.start();
+    for (int i = 0; i < 200; i++) {
+      integration.track(new TrackPayloadBuilder().event("tracked").build());
+    }
+    thread.join();
+    integration.track(new TrackPayloadBuilder().event("last").build());
+
+    // Every event is logged once, on the buffer's thread, whichever thread it came from.
+    verify(amplitude, timeout(1000)).logEvent(eq("last"), any(JSONObject.class),
+        nullable(JSONObject.class), eq(false));
+    verify(amplitude, times(200)).logEvent(eq("ingested"), any(JSONObject.class),
+        nullable(JSONObject.class), eq(false));
+    verify(amplitude, times(200)).logEvent(eq("tracked"), any(JSONObject.class),
+        nullable(JSONObject.class), eq(false));
+  }
+
   @Test
   public void flush() {
     integration.flush();
@@ -683,6 +1550,102 @@ public class AmplitudeTest {
     verify(amplitude, never()).clearUserProperties();
   }
 
+  @Test
+  public void trimMemoryReleasesCaches() {
+    integration = new AmplitudeIntegration(mockProvider, analytics,
+        new ValueMap().putValue("apiKey", "foo")
+            .putValue("messageIdDedupeWindow", 16)
+            .putValue("memoryBudgetBytes", 2048));
+    ArgumentCaptor<ComponentCallbacks2> callbacks =
+        ArgumentCaptor.forClass(ComponentCallbacks2.class);
+    verify(application, atLeastOnce()).registerComponentCallbacks(callbacks.capture());
+    MemoryBudget budget = (MemoryBudget) callbacks.getValue();
+
+    TrackPayload payload = new TrackPayload.Builder()
+        .anonymousId("foo").messageId("a").event("foo").properties(new Properties()).build();
+    integration.track(payload);
+    assertEquals(MessageIdWindow.bytesFor(16), budget.retainedBytes());
+
+    // Running low on memory halves the budget, which the window still fits in.
+    budget.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+    integration.track(payload);
+    assertEquals(1, integration.duplicateMessagesSuppressed());
+
+    budget.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    assertEquals(0, budget.retainedBytes());
+
+    // The window starts over once it's used again.
+    integration.track(payload);
+    assertEquals(1, integration.duplicateMessagesSuppressed());
+    assertEquals(MessageIdWindow.bytesFor(16), budget.retainedBytes());
+  }
+
+  @Test
+  public void memoryBudgetLimitsDedupeWindow() {
+    integration = new AmplitudeIntegration(mockProvider, analytics,
+        new ValueMap().putValue("apiKey", "foo")
+            .putValue("messageIdDedupeWindow", 1000)
+            .putValue("memoryBudgetBytes", 1024));
+    ArgumentCaptor<ComponentCallbacks2> callbacks =
+        ArgumentCaptor.forClass(ComponentCallbacks2.class);
+    verify(application, atLeastOnce()).registerComponentCallbacks(callbacks.capture());
+    MemoryBudget budget = (MemoryBudget) callbacks.getValue();
+
+    integration.track(new TrackPayload.Builder()
+        .anonymousId("foo").messageId("a").event("foo").properties(new Properties()).build());
+    integration.flush();
+
+    assertTrue(budget.retainedBytes() > 0);
+    assertTrue(budget.retainedBytes() <= 1024);
+  }
+
+  @Test
+  public void dedupeWindowIsKeptNextToGroupsCache() {
+    integration = new AmplitudeIntegration(mockProvider, analytics,
+        new ValueMap().putValue("apiKey", "foo")
+            .putValue("messageIdDedupeWindow", 8192));
+    ArgumentCaptor<ComponentCallbacks2> callbacks =
+        ArgumentCaptor.forClass(ComponentCallbacks2.class);
+    verify(application, atLeastOnce()).registerComponentCallbacks(callbacks.capture());
+    MemoryBudget budget = (MemoryBudget) callbacks.getValue();
+
+    // The event's group is cached next to the window.
+    TrackPayload payload = new TrackPayload.Builder()
+        .anonymousId("foo").messageId("a").event("foo").properties(new Properties())
+        .integration("Amplitude", new ValueMap()
+            .putValue("groups", new ValueMap().putValue("team", "android")))
+        .build();
+    integration.track(payload);
+    assertTrue(budget.retainedBytes() > MessageIdWindow.bytesFor(4096));
+
+    // Neither the budget nor the app going to the background takes the window away.
+    integration.flush();
+    budget.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+    integration.track(payload);
+    assertEquals(1, integration.duplicateMessagesSuppressed());
+    assertTrue(budget.retainedBytes() <= budget.budgetBytes() / 2);
+  }
+
+  @Test
+  public void resetClearsScreenDebounce() throws JSONException {
+    integration = new AmplitudeIntegration(mockProvider, new TestClock(), analytics, new ValueMap()
+        .putValue("apiKey", "foo")
+        .putValue("screenDebounceMillis", 500));
+
+    ScreenPayload home = new ScreenPayload.Builder().anonymousId("foo").name("Home").build();
+    integration.screen(home);
+    integration.reset();
+    integration.screen(home);
+
+    InOrder inOrder = inOrder(amplitude);
+    inOrder.verify(amplitude).logEvent(eq("Loaded a Screen"),
+        toStringEq(new JSONObject().put("name", "Home")), isNull(JSONObject.class), eq(false));
+    inOrder.verify(amplitude).setUserId(null);
+    inOrder.verify(amplitude).regenerateDeviceId();
+    inOrder.verify(amplitude).logEvent(eq("Loaded a Screen"),
+        toStringEq(new JSONObject().put("name", "Home")), isNull(JSONObject.class), eq(false));
+  }
+
   @Test
   public void groups() throws JSONException {
     assertNull(AmplitudeIntegration.groups((new TrackPayload.Builder())
@@ -730,10 +1693,117 @@ public class AmplitudeTest {
         .build()).toString());
   }
 
+  @Test
+  public void groupsAreConvertedOncePerContent() throws JSONException {
+    ValueMap groups = new ValueMap().putValue("team", "ios");
+    TrackPayload first = new TrackPayload.Builder().userId("foo").event("foo")
+        .integration("Amplitude", new ValueMap().putValue("groups", groups))
+        .build();
+    TrackPayload second = new TrackPayload.Builder().userId("foo").event("bar")
+        .integration("Amplitude",
+            new ValueMap().putValue("groups", new ValueMap().putValue("team", "ios")))
+        .build();
+
+    integration.track(first);
+    integration.track(second);
+    integration.track(first);
+
+    ArgumentCaptor<JSONObject> sent = ArgumentCaptor.forClass(JSONObject.class);
+    verify(amplitude, times(3)).logEvent(anyString(), any(JSONObject.class), sent.capture(),
+        eq(false));
+    assertSame(sent.getAllValues().get(0), sent.getAllValues().get(1));
+    assertSame(sent.getAllValues().get(0), sent.getAllValues().get(2));
+    assertEquals(2, integration.groupsCache.hits());
+    assertEquals(1, integration.groupsCache.misses());
+
+    // Changed in place: converted again rather than served stale.
+    groups.put("team", "android");
+    integration.track(first);
+    verify(amplitude, times(4)).logEvent(anyString(), any(JSONObject.class), sent.capture(),
+        eq(false));
+    assertEquals("android", sent.getValue().getString("team"));
+    assertEquals(2, integration.groupsCache.misses());
+  }
+
+  @Test
+  public void groupsCacheEvictsLeastRecentlyUsed() {
+    GroupsCache cache = new GroupsCache(2);
+    Map<String, Object> a = new ValueMap().putValue("team", "a");
+    Map<String, Object> b = new ValueMap().putValue("team", "b");
+    Map<String, Object> c = new ValueMap().putValue("team", "c");
+
+    JSONObject json = cache.get(a);
+    cache.get(b);
+    assertSame(json, cache.get(a));
+    cache.get(c);
+
+    assertEquals(2, cache.size());
+    assertSame(json, cache.get(a));
+    cache.get(b);
+    assertEquals(4, cache.misses());
+    assertEquals(0.33, cache.hitRate(), 0.01);
+  }
+
+  @Test
+  public void groupsCacheIsTrimmed() {
+    GroupsCache cache = new GroupsCache(4);
+    Map<String, Object> a = new ValueMap().putValue("team", "a");
+    JSONObject json = cache.get(a);
+    cache.get(new ValueMap().putValue("team", "b"));
+    long retained = cache.retainedBytes();
+    assertTrue(retained > 0);
+
+    cache.trimToSize(retained - 1);
+    assertEquals(1, cache.size());
+    // The least recently used entry went first.
+    cache.get(new ValueMap().putValue("team", "b"));
+    assertEquals(2, cache.misses());
+
+    cache.trimToSize(0);
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.retainedBytes());
+    assertTrue(json != cache.get(a));
+  }
+
   private void verifyAmplitudeLoggedEvent(String event, JSONObject jsonObject) {
     verify(amplitude).logEvent(eq(event), toStringEq(jsonObject), isNull(JSONObject.class), eq(false));
   }
 
+  static class FakeConnectivity implements ConnectivitySource {
+
+    private boolean connected = true;
+    private Listener listener;
+
+    void setConnected(boolean connected) {
+      this.connected = connected;
+      listener.onConnectivityChanged(connected);
+    }
+
+    @Override
+    public boolean isConnected() {
+      return connected;
+    }
+
+    @Override
+    public void start(Listener listener) {
+      this.listener = listener;
+    }
+  }
+
+  static class TestClock implements Clock {
+
+    long now = 1500000000000L;
+
+    void advance(long millis) {
+      now += millis;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+      return now;
+    }
+  }
+
   /**
    * Uses the string representation of the object. Useful for JSON objects.
    * @param expected Expected object
@@ -772,6 +1842,45 @@ public class AmplitudeTest {
 
   }
 
+  /**
+   * Compares the JSON representation of the revenue, which unlike {@link Revenue#equals} also
+   * works when the event properties contain arrays.
+   * @param expected Revenue expected.
+   * @return Argument matcher.
+   */
+  private static Revenue revenueEq(Revenue expected) {
+    return argThat(new RevenueEqArgumentMatcher(expected));
+  }
+
+  private static class RevenueEqArgumentMatcher implements ArgumentMatcher<Revenue> {
+
+    private Revenue expected;
+
+    RevenueEqArgumentMatcher(Revenue expected) {
+      this.expected = expected;
+    }
+
+    @Override
+    public boolean matches(Revenue other) {
+      return other != null && toJson(expected).equals(toJson(other));
+    }
+
+    @Override
+    public String toString() {
+      return toJson(expected);
+    }
+
+    private static String toJson(Revenue revenue) {
+      try {
+        Method toJSONObject = Revenue.class.getDeclaredMethod("toJSONObject");
+        toJSONObject.setAccessible(true);
+        return toJSONObject.invoke(revenue).toString();
+      } catch (Exception e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+
   /**
    * Uses the user properties operations to compare the identify payloads.
    * @param expected Identify payload expected.
@@ -0,0 +1,172 @@
+package com.segment.analytics.android.integrations.amplitude;
+
+import com.segment.analytics.Properties;
+import com.segment.analytics.ValueMap;
+import com.segment.analytics.integrations.ScreenPayload;
+import com.segment.analytics.integrations.TrackPayload;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BufferedEventTest {
+
+  private static final int BACKLOG = 5000;
+
+  @Test
+  public void sharesNamesAndKeys() {
+    StringPool pool = new StringPool(16);
+    BufferedEvent first = BufferedEvent.track(track(0), "Amplitude", 0, pool, false);
+    BufferedEvent second = BufferedEvent.track(track(1), "Amplitude", 0, pool, false);
+
+    assertSame(first.name, second.name);
+    assertSame(key(first.properties(), "screen"), key(second.properties(), "screen"));
+    Map<?, ?> nested = (Map<?, ?>) first.properties().get("item");
+    Map<?, ?> otherNested = (Map<?, ?>) second.properties().get("item");
+    assertSame(key(nested, "sku"), key(otherNested, "sku"));
+    assertEquals(track(0).properties(), first.properties());
+  }
+
+  @Test
+  public void keepsPayloadWithoutPool() {
+    TrackPayload track = track(0);
+    BufferedEvent event = BufferedEvent.track(track, "Amplitude", 42, null, false);
+
+    assertSame(track.event(), event.name);
+    assertEquals(track.properties(), event.properties());
+    assertEquals(42, event.timestamp);
+  }
+
+  @Test
+  public void screen() {
+    ScreenPayload screen =
+        new ScreenPayload.Builder().anonymousId("foo").name("Home").category("Main").build();
+    BufferedEvent event = BufferedEvent.screen(screen, 0, new StringPool(16), false);
+
+    assertEquals("Home", event.name);
+    assertEquals("Main", event.category);
+    assertNull(event.options);
+  }
+
+  @Test
+  public void poolIsBounded() {
+    StringPool pool = new StringPool(2);
+    pool.intern(new String("a"));
+    pool.intern(new String("b"));
+    String c = new String("c");
+
+    assertSame(c, pool.intern(c));
+    assertNotSame(pool.intern(new String("c")), c);
+    assertEquals(2, pool.size());
+
+    String longString = new String(new char[StringPool.MAX_LENGTH + 1]);
+    assertSame(longString, new StringPool(2).intern(longString));
+  }
+
+  @Test
+  public void poolIsTrimmed() {
+    StringPool pool = new StringPool(16);
+    String a = new String("a");
+    pool.intern(a);
+    pool.intern(new String("a"));
+    long retained = pool.retainedBytes();
+    assertTrue(retained > 0);
+
+    pool.trimToSize(retained);
+    assertSame(a, pool.intern(new String("a")));
+
+    pool.trimToSize(retained - 1);
+    assertEquals(0, pool.size());
+    assertEquals(0, pool.retainedBytes());
+    assertNotSame(a, pool.intern(new String("a")));
+  }
+
+  @Test
+  public void backlogRetainsFewerStrings() {
+    long unpooled = retainedStringBytes(backlog(null));
+    long pooled = retainedStringBytes(backlog(new StringPool(StringPool.DEFAULT_MAX_SIZE)));
+    // Every event has its own copies without the pool, and shares a handful with it.
+    assertTrue(
+        "Names and keys of " + BACKLOG + " buffered events: " + unpooled + " bytes unpooled, "
+            + pooled + " bytes pooled",
+        pooled * 100 < unpooled);
+  }
+
+  private static List<BufferedEvent> backlog(StringPool pool) {
+    List<BufferedEvent> events = new ArrayList<>(BACKLOG);
+    for (int i = 0; i < BACKLOG; i++) {
+      events.add(BufferedEvent.track(track(i), "Amplitude", 0, pool, false));
+    }
+    return events;
+  }
+
+  /** Builds the strings on the fly, like apps do, so that no two events share them. */
+  private static TrackPayload track(int i) {
+    String screen = new StringBuilder("scr").append("een").toString();
+    return new TrackPayload.Builder()
+        .anonymousId("foo")
+        .event(new StringBuilder("Button ").append("Tapped").toString())
+        .properties(
+            new Properties()
+                .putValue(screen, "Home")
+                .putValue(new StringBuilder("posi").append("tion").toString(), i % 10)
+                .putValue(
+                    new StringBuilder("it").append("em").toString(),
+                    new ValueMap().putValue(new StringBuilder("s").append("ku").toString(), "A1"))
+                .putValue(
+                    new StringBuilder("ta").append("gs").toString(),
+                    singletonList(
+                        Collections.singletonMap(
+                            new StringBuilder("na").append("me").toString(), "new"))))
+        .build();
+  }
+
+  /** Estimated bytes of the distinct name and key instances the events hold on to. */
+  private static long retainedStringBytes(List<BufferedEvent> events) {
+    Set<String> strings = Collections.newSetFromMap(new IdentityHashMap<String, Boolean>());
+    for (BufferedEvent event : events) {
+      strings.add(event.name);
+      collectKeys(event.properties(), strings);
+    }
+    long bytes = 0;
+    for (String string : strings) {
+      // Object header, fields and backing array, as on a 64-bit VM.
+      bytes += 24 + 16 + 2 * string.length();
+    }
+    return bytes;
+  }
+
+  private static void collectKeys(Object value, Set<String> strings) {
+    if (value instanceof Map) {
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        strings.add((String) entry.getKey());
+        collectKeys(entry.getValue(), strings);
+      }
+    } else if (value instanceof List) {
+      for (Object item : (List<?>) value) {
+        collectKeys(item, strings);
+      }
+    }
+  }
+
+  private static String key(Map<?, ?> map, String key) {
+    for (Object candidate : map.keySet()) {
+      if (key.equals(candidate)) {
+        return (String) candidate;
+      }
+    }
+    throw new AssertionError("No key " + key);
+  }
+}
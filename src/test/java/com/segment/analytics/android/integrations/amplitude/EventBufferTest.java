@@ -0,0 +1,118 @@
+package com.segment.analytics.android.integrations.amplitude;
+
+import com.segment.analytics.integrations.Logger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static com.segment.analytics.Analytics.LogLevel.NONE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+public class EventBufferTest {
+
+  private final List<Runnable> scheduled = new ArrayList<>();
+  private final List<String> ran = new ArrayList<>();
+  private AmplitudeIntegration.BackpressureListener listener;
+  private EventBuffer buffer;
+
+  @Before
+  public void setUp() {
+    listener = mock(AmplitudeIntegration.BackpressureListener.class);
+    buffer = new EventBuffer(4, 3, 1, Logger.with(NONE), new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        scheduled.add(command);
+      }
+    });
+    buffer.setListener(listener);
+  }
+
+  @Test
+  public void runsOperationsInOrder() {
+    buffer.offer(record("track"), true);
+    buffer.offer(record("identify"), false);
+    buffer.offer(record("screen"), true);
+
+    assertEquals(1, scheduled.size());
+    drain();
+
+    assertEquals(3, ran.size());
+    assertEquals("track", ran.get(0));
+    assertEquals("identify", ran.get(1));
+    assertEquals("screen", ran.get(2));
+    assertEquals(0, buffer.depth());
+  }
+
+  @Test
+  public void dropsEventsWhenFull() {
+    for (int i = 0; i < 4; i++) {
+      assertTrue(buffer.offer(record("event " + i), true));
+    }
+
+    assertFalse(buffer.offer(record("dropped"), true));
+    assertEquals(1, buffer.dropped());
+    // Operations that aren't events are never dropped.
+    assertTrue(buffer.offer(record("reset"), false));
+    assertEquals(5, buffer.depth());
+
+    drain();
+    assertEquals(5, ran.size());
+    assertFalse(ran.contains("dropped"));
+  }
+
+  @Test
+  public void reportsWatermarks() {
+    buffer.offer(record("a"), true);
+    buffer.offer(record("b"), true);
+    verifyNoMoreInteractions(listener);
+
+    buffer.offer(record("c"), true);
+    buffer.offer(record("d"), true);
+    buffer.offer(record("e"), true);
+    verify(listener).onHighWatermark(3, 0);
+
+    drain();
+    verify(listener).onLowWatermark(1, 1);
+    verifyNoMoreInteractions(listener);
+  }
+
+  @Test
+  public void keepsRunningAfterFailedOperation() {
+    buffer.offer(new Runnable() {
+      @Override
+      public void run() {
+        throw new IllegalStateException("foo");
+      }
+    }, true);
+    buffer.offer(record("after"), true);
+
+    drain();
+
+    assertEquals(1, ran.size());
+    assertEquals("after", ran.get(0));
+  }
+
+  private void drain() {
+    while (!scheduled.isEmpty()) {
+      scheduled.remove(0).run();
+    }
+  }
+
+  private Runnable record(final String name) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        ran.add(name);
+      }
+    };
+  }
+}
@@ -0,0 +1,162 @@
+package com.segment.analytics.android.integrations.amplitude;
+
+import com.segment.analytics.Properties;
+import com.segment.analytics.ValueMap;
+import com.segment.analytics.integrations.TrackPayload;
+
+import org.junit.Test;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EventCodecTest {
+
+  private static final int BACKLOG = 10000;
+
+  @Test
+  public void roundTrip() {
+    Properties properties = new Properties()
+        .putValue("string", "h\u00e9llo \ud83d\ude00")
+        .putValue("empty", "")
+        .putValue("null", null)
+        .putValue("true", true)
+        .putValue("false", false)
+        .putValue("int", -42)
+        .putValue("maxInt", Integer.MAX_VALUE)
+        .putValue("long", Long.MIN_VALUE)
+        .putValue("float", 1.5f)
+        .putValue("double", -0.1)
+        .putValue("map", new ValueMap()
+            .putValue("nested", new ValueMap().putValue("deep", 1L)))
+        .putValue("list", Arrays.asList(1, "two", null, Collections.singletonMap("three", 3)));
+
+    assertEquals(properties, EventCodec.decode(EventCodec.encode(properties)));
+  }
+
+  @Test
+  public void emptyProperties() {
+    byte[] encoded = EventCodec.encode(new Properties());
+
+    assertEquals(1, encoded.length);
+    assertEquals(new Properties(), EventCodec.decode(encoded));
+  }
+
+  @Test
+  public void unsupportedValues() {
+    assertNull(EventCodec.encode(new Properties().putValue("date", new Date())));
+
+    // The properties are then kept as they are.
+    TrackPayload track = new TrackPayload.Builder().anonymousId("foo").event("bar")
+        .properties(new Properties().putValue("date", new Date(0)))
+        .build();
+    BufferedEvent event = BufferedEvent.track(track, "Amplitude", 0, null, true);
+    assertEquals(-1, event.encodedBytes());
+    assertEquals(new Date(0), event.properties().get("date"));
+
+    // And the scratch buffer is ready for the next event.
+    Properties properties = new Properties().putValue("foo", "bar");
+    assertEquals(properties, EventCodec.decode(EventCodec.encode(properties)));
+  }
+
+  @Test
+  public void largeProperties() {
+    Properties properties = new Properties();
+    for (int i = 0; i < 5000; i++) {
+      properties.putValue("key" + i, "value" + i);
+    }
+
+    assertEquals(properties, EventCodec.decode(EventCodec.encode(properties)));
+  }
+
+  /**
+   * Compares the heap retained by a backlog of buffered events, and the time the collector spends
+   * going over it, with and without encoding. The measurements depend on the JVM, so only the
+   * retained heap is asserted on.
+   */
+  @Test
+  public void backlogBenchmark() {
+    Measurement plain = measure(false);
+    Measurement encoded = measure(true);
+    assertTrue(
+        "Backlog of " + BACKLOG + " events, plain: " + plain + ", encoded: " + encoded,
+        encoded.retainedBytes < plain.retainedBytes);
+  }
+
+  private static Measurement measure(boolean encode) {
+    StringPool pool = new StringPool(StringPool.DEFAULT_MAX_SIZE);
+    long before = usedHeap();
+    List<BufferedEvent> backlog = new ArrayList<>(BACKLOG);
+    for (int i = 0; i < BACKLOG; i++) {
+      backlog.add(BufferedEvent.track(track(i), "Amplitude", 0, pool, encode));
+    }
+    long retained = usedHeap() - before;
+
+    long gcBefore = collectionMillis();
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+    }
+    long gcMillis = collectionMillis() - gcBefore;
+
+    // Keep the backlog reachable until it was measured.
+    assertEquals(BACKLOG, backlog.size());
+    return new Measurement(retained, gcMillis);
+  }
+
+  private static TrackPayload track(int i) {
+    return new TrackPayload.Builder()
+        .anonymousId("foo")
+        .event("Product Viewed")
+        .properties(new Properties()
+            .putValue("productId", "sku-" + i)
+            .putValue("name", "Product " + i)
+            .putValue("price", 9.99 + i)
+            .putValue("quantity", i % 5)
+            .putValue("inStock", i % 2 == 0)
+            .putValue("categories", Arrays.asList("shoes", "sale"))
+            .putValue("seller", new ValueMap().putValue("id", i).putValue("rating", 4.5)))
+        .build();
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  private static long collectionMillis() {
+    long millis = 0;
+    for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+      millis += Math.max(0, collector.getCollectionTime());
+    }
+    return millis;
+  }
+
+  private static final class Measurement {
+
+    final long retainedBytes;
+    final long gcMillis;
+
+    Measurement(long retainedBytes, long gcMillis) {
+      this.retainedBytes = retainedBytes;
+      this.gcMillis = gcMillis;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%d bytes retained (%d per event), %d ms in 5 full collections",
+          retainedBytes, retainedBytes / BACKLOG, gcMillis);
+    }
+  }
+}
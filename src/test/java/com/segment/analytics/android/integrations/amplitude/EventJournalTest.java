@@ -0,0 +1,314 @@
+package com.segment.analytics.android.integrations.amplitude;
+
+import com.segment.analytics.Properties;
+import com.segment.analytics.ValueMap;
+import com.segment.analytics.integrations.Logger;
+import com.segment.analytics.integrations.ScreenPayload;
+import com.segment.analytics.integrations.TrackPayload;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static com.segment.analytics.Analytics.LogLevel.NONE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EventJournalTest {
+
+  private static final int CAPACITY = 4096;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private File file;
+  private QueueingExecutor executor;
+
+  @Before
+  public void setUp() {
+    file = new File(folder.getRoot(), EventJournal.FILE_NAME);
+    executor = new QueueingExecutor();
+  }
+
+  @Test
+  public void replaysPendingEvents() {
+    EventJournal journal = open();
+    assertTrue(journal.append(track("foo", 1)));
+    assertTrue(journal.append(screen()));
+
+    List<BufferedEvent> events = open().replay();
+
+    assertEquals(2, events.size());
+    BufferedEvent track = events.get(0);
+    assertFalse(track.screen);
+    assertEquals("foo", track.name);
+    assertEquals(new Properties().putValue("index", 1), track.properties());
+    assertEquals(new ValueMap().putValue("outOfSession", true), track.options);
+    assertEquals(1000, track.timestamp);
+    BufferedEvent screen = events.get(1);
+    assertTrue(screen.screen);
+    assertEquals("Home", screen.name);
+    assertEquals("Main", screen.category);
+    assertNull(screen.options);
+  }
+
+  @Test
+  public void encodedPropertiesAreCopied() {
+    EventJournal journal = open();
+    TrackPayload payload = new TrackPayload.Builder()
+        .anonymousId("foo")
+        .event("foo")
+        .properties(new Properties().putValue("index", 1).putValue("name", "h\u00e9llo"))
+        .build();
+    assertTrue(journal.append(BufferedEvent.track(payload, "Amplitude", 0, null, true)));
+    int encoded = journal.pendingBytes();
+    assertTrue(journal.append(BufferedEvent.track(payload, "Amplitude", 0, null, false)));
+
+    // Encoded or not, an event is journaled as the same record.
+    assertEquals(2 * encoded, journal.pendingBytes());
+    List<BufferedEvent> events = open().replay();
+    assertEquals(payload.properties(), events.get(0).properties());
+    assertEquals(payload.properties(), events.get(1).properties());
+  }
+
+  @Test
+  public void appendsBeforeOpenAreNotJournaled() throws InterruptedException {
+    final EventJournal journal = new EventJournal(file, CAPACITY, Logger.with(NONE), executor);
+
+    // An append doesn't wait for the lock while the journal isn't open.
+    final boolean[] appended = {true};
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        appended[0] = journal.append(track("foo", 1));
+      }
+    });
+    synchronized (journal) {
+      thread.start();
+      thread.join(1000);
+      assertFalse(thread.isAlive());
+    }
+    assertFalse(appended[0]);
+    assertEquals(0, journal.replay().size());
+    // Replaying opened the journal.
+    assertTrue(journal.append(track("foo", 2)));
+    assertEquals(1, open().replay().size());
+  }
+
+  @Test
+  public void replaysOnce() {
+    open().append(track("foo", 1));
+    EventJournal journal = open();
+
+    assertEquals(1, journal.replay().size());
+    assertEquals(0, journal.replay().size());
+  }
+
+  @Test
+  public void completedEventsAreNotReplayed() {
+    EventJournal journal = open();
+    journal.append(track("foo", 1));
+    journal.append(track("foo", 2));
+    journal.append(track("foo", 3));
+    journal.complete();
+
+    List<BufferedEvent> events = open().replay();
+    assertEquals(2, events.size());
+    assertEquals(2, events.get(0).properties().getInt("index", 0));
+
+    journal.complete();
+    journal.complete();
+    assertEquals(0, journal.pendingBytes());
+    assertEquals(0, open().replay().size());
+  }
+
+  @Test
+  public void startsOverWhenNothingIsPending() {
+    EventJournal journal = open();
+    journal.append(track("foo", 1));
+    int size = journal.pendingBytes();
+    journal.complete();
+
+    // Many more events than the file holds, as long as they are handed off.
+    for (int i = 0; i < 10 * CAPACITY / size; i++) {
+      assertTrue(journal.append(track("foo", i)));
+      journal.complete();
+    }
+    assertEquals(0, open().replay().size());
+  }
+
+  @Test
+  public void compactsWhenFull() {
+    EventJournal journal = open();
+    int appended = 0;
+    while (journal.append(track("foo", appended))) {
+      appended++;
+    }
+    // Half of the events were handed off, so the rest fits at the front.
+    for (int i = 0; i < appended / 2 + 1; i++) {
+      journal.complete();
+    }
+
+    assertTrue(journal.append(track("foo", appended)));
+
+    List<BufferedEvent> events = open().replay();
+    assertEquals(appended - appended / 2, events.size());
+    assertEquals(appended / 2 + 1, events.get(0).properties().getInt("index", 0));
+    assertEquals(appended, events.get(events.size() - 1).properties().getInt("index", 0));
+  }
+
+  @Test
+  public void doesNotCompactOverPendingEvents() {
+    EventJournal journal = open();
+    int appended = 0;
+    while (journal.append(track("foo", appended))) {
+      appended++;
+    }
+    journal.complete();
+
+    assertFalse(journal.append(track("foo", appended)));
+    assertEquals(appended - 1, open().replay().size());
+  }
+
+  @Test
+  public void discardLast() {
+    EventJournal journal = open();
+    journal.append(track("foo", 1));
+    journal.append(track("foo", 2));
+    journal.discardLast();
+    // Only the last record can be discarded.
+    journal.discardLast();
+
+    List<BufferedEvent> events = open().replay();
+    assertEquals(1, events.size());
+    assertEquals(1, events.get(0).properties().getInt("index", 0));
+  }
+
+  @Test
+  public void truncatedTail() throws Exception {
+    EventJournal journal = open();
+    journal.append(track("foo", 1));
+    int first = journal.pendingBytes();
+    journal.append(track("foo", 2));
+
+    // The process died while the second record was written, and only part of it got to disk.
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    randomAccessFile.setLength(16 + first + 12);
+    randomAccessFile.close();
+
+    journal = open();
+    List<BufferedEvent> events = journal.replay();
+    assertEquals(1, events.size());
+    assertEquals(first, journal.pendingBytes());
+
+    // The torn record is overwritten.
+    journal.append(track("foo", 3));
+    events = open().replay();
+    assertEquals(2, events.size());
+    assertEquals(3, events.get(1).properties().getInt("index", 0));
+  }
+
+  @Test
+  public void corruptTail() throws Exception {
+    EventJournal journal = open();
+    journal.append(track("foo", 1));
+    int first = journal.pendingBytes();
+    journal.append(track("foo", 2));
+    journal.append(track("foo", 3));
+
+    // Flip a byte of the second record; it and everything after it are dropped.
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    randomAccessFile.seek(16 + first + 12);
+    int value = randomAccessFile.read();
+    randomAccessFile.seek(16 + first + 12);
+    randomAccessFile.write(value ^ 0xff);
+    randomAccessFile.close();
+
+    assertEquals(1, open().replay().size());
+  }
+
+  @Test
+  public void corruptHeaderStartsEmpty() throws Exception {
+    open().append(track("foo", 1));
+
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    randomAccessFile.writeInt(0);
+    randomAccessFile.close();
+
+    EventJournal journal = open();
+    assertEquals(0, journal.replay().size());
+    assertTrue(journal.append(track("foo", 2)));
+    assertEquals(1, open().replay().size());
+  }
+
+  @Test
+  public void groupCommit() {
+    EventJournal journal = open();
+    for (int i = 0; i < 10; i++) {
+      journal.append(track("foo", i));
+    }
+    assertEquals(1, executor.tasks.size());
+
+    executor.runAll();
+    journal.append(track("foo", 10));
+    assertEquals(1, executor.tasks.size());
+  }
+
+  @Test
+  public void unencodableEventsAreNotJournaled() {
+    EventJournal journal = open();
+    TrackPayload payload = new TrackPayload.Builder().anonymousId("foo").event("foo")
+        .properties(new Properties().putValue("foo", new Object()))
+        .build();
+
+    assertFalse(journal.append(BufferedEvent.track(payload, "Amplitude", 0, null, false)));
+    assertEquals(0, journal.pendingBytes());
+  }
+
+  private EventJournal open() {
+    EventJournal journal = new EventJournal(file, CAPACITY, Logger.with(NONE), executor);
+    assertTrue(journal.open());
+    return journal;
+  }
+
+  private static BufferedEvent track(String event, int index) {
+    TrackPayload payload = new TrackPayload.Builder()
+        .anonymousId("foo")
+        .event(event)
+        .properties(new Properties().putValue("index", index))
+        .integration("Amplitude", new ValueMap().putValue("outOfSession", true))
+        .build();
+    return BufferedEvent.track(payload, "Amplitude", 1000, null, false);
+  }
+
+  private static BufferedEvent screen() {
+    ScreenPayload payload =
+        new ScreenPayload.Builder().anonymousId("foo").name("Home").category("Main").build();
+    return BufferedEvent.screen(payload, 0, null, false);
+  }
+
+  static class QueueingExecutor implements Executor {
+
+    final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+    @Override
+    public void execute(Runnable command) {
+      tasks.add(command);
+    }
+
+    void runAll() {
+      Runnable task;
+      while ((task = tasks.poll()) != null) {
+        task.run();
+      }
+    }
+  }
+}
@@ -0,0 +1,338 @@
+package com.segment.analytics.android.integrations.amplitude;
+
+import android.app.Application;
+
+import com.amplitude.api.AmplitudeClient;
+import com.segment.analytics.Analytics;
+import com.segment.analytics.Middleware;
+import com.segment.analytics.ValueMap;
+import com.segment.analytics.integrations.BasePayload;
+import com.segment.analytics.integrations.GroupPayload;
+import com.segment.analytics.integrations.IdentifyPayload;
+import com.segment.analytics.integrations.Logger;
+import com.segment.analytics.integrations.ScreenPayload;
+import com.segment.analytics.integrations.TrackPayload;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static com.segment.analytics.Analytics.LogLevel.NONE;
+import static com.segment.analytics.internal.Utils.parseISO8601Date;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Replays recorded Segment payloads through {@link AmplitudeSessionId} and {@link
+ * AmplitudeIntegration}, against an {@link AmplitudeClient} that only counts the calls it
+ * receives.
+ *
+ * <p>Traces are JSONL files with one Segment payload per line, in the shape the Segment API
+ * accepts ({@code type}, {@code event}, {@code name}, {@code properties}, {@code traits}, {@code
+ * integrations}, ...). Run {@link #main(String[])} with the path of a trace, the number of passes
+ * and optionally a JSON object of integration settings, or use {@link #replay} from a test.
+ */
+public final class TraceReplay {
+
+  private final List<BasePayload> payloads;
+
+  TraceReplay(List<BasePayload> payloads) {
+    this.payloads = payloads;
+  }
+
+  static TraceReplay read(Reader reader) throws IOException {
+    BufferedReader lines = new BufferedReader(reader);
+    List<BasePayload> payloads = new ArrayList<>();
+    try {
+      String line;
+      int lineNumber = 0;
+      while ((line = lines.readLine()) != null) {
+        lineNumber++;
+        if (line.trim().isEmpty()) {
+          continue;
+        }
+        try {
+          BasePayload payload = payload(new JSONObject(line));
+          if (payload != null) {
+            payloads.add(payload);
+          }
+        } catch (JSONException e) {
+          throw new IOException("Malformed payload on line " + lineNumber, e);
+        }
+      }
+    } finally {
+      lines.close();
+    }
+    return new TraceReplay(payloads);
+  }
+
+  static TraceReplay readResource(String name) throws IOException {
+    return read(new InputStreamReader(TraceReplay.class.getResourceAsStream(name), "UTF-8"));
+  }
+
+  int size() {
+    return payloads.size();
+  }
+
+  /**
+   * Sends every payload of the trace {@code passes} times through a fresh session middleware and
+   * integration created with {@code settings}. The first pass is not measured, so that class
+   * loading and JIT compilation don't skew the numbers.
+   */
+  Report replay(ValueMap settings, int passes) {
+    final Map<String, Integer> calls = new TreeMap<>();
+    AmplitudeClient amplitude =
+        mock(
+            AmplitudeClient.class,
+            withSettings()
+                .stubOnly()
+                .defaultAnswer(
+                    new Answer<Object>() {
+                      @Override
+                      public Object answer(InvocationOnMock invocation) {
+                        String method = invocation.getMethod().getName();
+                        Integer count = calls.get(method);
+                        calls.put(method, count == null ? 1 : count + 1);
+                        return null;
+                      }
+                    }));
+    Analytics analytics = mock(Analytics.class);
+    when(analytics.getApplication()).thenReturn(mock(Application.class));
+    when(analytics.logger("Amplitude")).thenReturn(Logger.with(NONE));
+
+    final AmplitudeIntegration integration =
+        new AmplitudeIntegration(new FixedProvider(amplitude), analytics, settings);
+    AmplitudeSessionId sessionId = new AmplitudeSessionId();
+
+    run(sessionId, integration);
+    calls.clear();
+
+    long allocatedBefore = allocatedBytes();
+    long start = System.nanoTime();
+    for (int i = 1; i < passes; i++) {
+      run(sessionId, integration);
+    }
+    long elapsed = System.nanoTime() - start;
+    long allocated = allocatedBytes() - allocatedBefore;
+
+    return new Report((passes - 1) * payloads.size(), elapsed, allocated, calls);
+  }
+
+  private void run(AmplitudeSessionId sessionId, final AmplitudeIntegration integration) {
+    for (int i = 0; i < payloads.size(); i++) {
+      final BasePayload payload = payloads.get(i);
+      sessionId.intercept(
+          new Middleware.Chain() {
+            @Override
+            public BasePayload payload() {
+              return payload;
+            }
+
+            @Override
+            public void proceed(BasePayload payload) {
+              dispatch(integration, payload);
+            }
+          });
+    }
+  }
+
+  static void dispatch(AmplitudeIntegration integration, BasePayload payload) {
+    switch (payload.type()) {
+      case identify:
+        integration.identify((IdentifyPayload) payload);
+        break;
+      case group:
+        integration.group((GroupPayload) payload);
+        break;
+      case screen:
+        integration.screen((ScreenPayload) payload);
+        break;
+      case track:
+        integration.track((TrackPayload) payload);
+        break;
+      default:
+        break;
+    }
+  }
+
+  /** Bytes allocated so far by the current thread, or 0 if the JVM can't tell. */
+  static long allocatedBytes() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+      if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+    }
+    return 0;
+  }
+
+  private static BasePayload payload(JSONObject json) throws JSONException {
+    String type = json.optString("type");
+    BasePayload.Builder<?, ?> builder;
+    switch (type) {
+      case "track":
+        builder =
+            new TrackPayload.Builder()
+                .event(json.getString("event"))
+                .properties(map(json.optJSONObject("properties")));
+        break;
+      case "screen":
+        builder =
+            new ScreenPayload.Builder()
+                .name(json.optString("name", null))
+                .category(json.optString("category", null))
+                .properties(map(json.optJSONObject("properties")));
+        break;
+      case "identify":
+        builder = new IdentifyPayload.Builder().traits(map(json.optJSONObject("traits")));
+        break;
+      case "group":
+        builder =
+            new GroupPayload.Builder()
+                .groupId(json.getString("groupId"))
+                .traits(map(json.optJSONObject("traits")));
+        break;
+      default:
+        return null;
+    }
+
+    String userId = json.optString("userId", null);
+    String anonymousId = json.optString("anonymousId", null);
+    if (userId == null && anonymousId == null) {
+      anonymousId = "trace";
+    }
+    if (userId != null) {
+      builder.userId(userId);
+    }
+    if (anonymousId != null) {
+      builder.anonymousId(anonymousId);
+    }
+    if (json.has("messageId")) {
+      builder.messageId(json.getString("messageId"));
+    }
+    if (json.has("timestamp")) {
+      builder.timestamp(parseISO8601Date(json.getString("timestamp")));
+    }
+    if (json.has("integrations")) {
+      builder.integrations(map(json.getJSONObject("integrations")));
+    }
+    return builder.build();
+  }
+
+  private static Map<String, Object> map(JSONObject json) throws JSONException {
+    Map<String, Object> map = new LinkedHashMap<>();
+    if (json == null) {
+      return map;
+    }
+    Iterator<String> keys = json.keys();
+    while (keys.hasNext()) {
+      String key = keys.next();
+      map.put(key, value(json.get(key)));
+    }
+    return map;
+  }
+
+  private static Object value(Object value) throws JSONException {
+    if (value instanceof JSONObject) {
+      return map((JSONObject) value);
+    }
+    if (value instanceof JSONArray) {
+      JSONArray array = (JSONArray) value;
+      List<Object> list = new ArrayList<>(array.length());
+      for (int i = 0; i < array.length(); i++) {
+        list.add(value(array.get(i)));
+      }
+      return list;
+    }
+    if (value == JSONObject.NULL) {
+      return null;
+    }
+    return value;
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("Usage: TraceReplay <trace.jsonl> [passes] [settings json]");
+      System.exit(1);
+    }
+    TraceReplay trace = read(new FileReader(args[0]));
+    int passes = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+    ValueMap settings = new ValueMap().putValue("apiKey", "replay");
+    if (args.length > 2) {
+      settings.putAll(map(new JSONObject(args[2])));
+    }
+    System.out.println(trace.replay(settings, passes));
+  }
+
+  /** Throughput, allocation and SDK call mix of a replay. */
+  static final class Report {
+
+    final int events;
+    final long elapsedNanos;
+    final long allocatedBytes;
+    final Map<String, Integer> calls;
+
+    Report(int events, long elapsedNanos, long allocatedBytes, Map<String, Integer> calls) {
+      this.events = events;
+      this.elapsedNanos = elapsedNanos;
+      this.allocatedBytes = allocatedBytes;
+      this.calls = calls;
+    }
+
+    double eventsPerSecond() {
+      return elapsedNanos == 0 ? 0 : events * 1e9 / elapsedNanos;
+    }
+
+    double bytesPerEvent() {
+      return events == 0 ? 0 : (double) allocatedBytes / events;
+    }
+
+    int calls(String method) {
+      Integer count = calls.get(method);
+      return count == null ? 0 : count;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%d events, %.0f events/s, %.0f bytes/event, calls %s",
+          events, eventsPerSecond(), bytesPerEvent(), calls);
+    }
+  }
+
+  static final class FixedProvider implements AmplitudeIntegration.Provider {
+
+    private final AmplitudeClient amplitude;
+
+    FixedProvider(AmplitudeClient amplitude) {
+      this.amplitude = amplitude;
+    }
+
+    @Override
+    public AmplitudeClient get() {
+      return amplitude;
+    }
+
+    @Override
+    public AmplitudeClient get(String instanceName) {
+      return amplitude;
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package com.segment.analytics.android.integrations.amplitude;
+
+import com.segment.analytics.ValueMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TraceReplayTest {
+
+  private TraceReplay trace;
+
+  @Before
+  public void setUp() throws Exception {
+    trace = TraceReplay.readResource("/trace.jsonl");
+  }
+
+  @Test
+  public void readsEveryPayload() {
+    assertEquals(92, trace.size());
+  }
+
+  @Test
+  public void skipsUnsupportedTypes() throws Exception {
+    TraceReplay trace = TraceReplay.read(new StringReader(
+        "{\"type\":\"alias\",\"userId\":\"foo\",\"previousId\":\"bar\"}\n"
+            + "\n"
+            + "{\"type\":\"track\",\"event\":\"foo\",\"anonymousId\":\"bar\"}\n"));
+
+    assertEquals(1, trace.size());
+  }
+
+  @Test
+  public void replay() {
+    TraceReplay.Report report = trace.replay(new ValueMap().putValue("apiKey", "foo"), 3);
+
+    assertEquals(184, report.events);
+    // 50 tracks and 40 screens per pass.
+    assertEquals(180, report.calls("logEvent"));
+    assertEquals(16, report.calls("logRevenue"));
+    assertEquals(2, report.calls("setUserId"));
+    assertEquals(2, report.calls("setUserProperties"));
+    assertEquals(2, report.calls("setGroup"));
+    assertEquals(2, report.calls("groupIdentify"));
+    assertTrue(report.toString(), report.eventsPerSecond() > 0);
+  }
+
+  @Test
+  public void replayWithRevenuePerProduct() {
+    TraceReplay.Report report = trace.replay(new ValueMap()
+        .putValue("apiKey", "foo")
+        .putValue("useLogRevenueV2", true)
+        .putValue("trackRevenuePerProduct", true), 2);
+
+    assertEquals(90, report.calls("logEvent"));
+    assertEquals(16, report.calls("logRevenueV2"));
+  }
+}
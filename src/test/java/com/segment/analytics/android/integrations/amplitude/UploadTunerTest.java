@@ -0,0 +1,92 @@
+package com.segment.analytics.android.integrations.amplitude;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UploadTunerTest {
+
+  private AmplitudeTest.TestClock clock;
+  private UploadTuner tuner;
+
+  @Before
+  public void setUp() {
+    clock = new AmplitudeTest.TestClock();
+    clock.now = 0;
+    tuner = new UploadTuner(10, 100, 10 * 1000, 60 * 1000);
+  }
+
+  @Test
+  public void quietSessionUploadsPromptly() {
+    assertFalse(tuner.record(clock.now));
+    clock.advance(UploadTuner.BUCKET_MILLIS);
+
+    assertTrue(tuner.record(clock.now));
+    assertEquals(10, tuner.threshold());
+    assertEquals(10 * 1000, tuner.periodMillis());
+  }
+
+  @Test
+  public void chattySessionUploadsLargerBatches() {
+    // 1 event/s over the whole window.
+    recordEvery(1000, UploadTuner.BUCKETS * UploadTuner.BUCKET_MILLIS);
+
+    assertEquals(1.0, tuner.rate(), 0.01);
+    assertEquals(60, tuner.threshold());
+    assertEquals(10 * 1000 + 50 * 1000 * 50 / 90, tuner.periodMillis());
+  }
+
+  @Test
+  public void staysWithinBounds() {
+    recordEvery(10, UploadTuner.BUCKETS * UploadTuner.BUCKET_MILLIS);
+
+    assertEquals(100, tuner.threshold());
+    assertEquals(60 * 1000, tuner.periodMillis());
+  }
+
+  @Test
+  public void retunesOncePerBucket() {
+    tuner.record(clock.now);
+    clock.advance(UploadTuner.BUCKET_MILLIS);
+
+    // A burst within the current bucket is only taken into account once the bucket completes.
+    assertTrue(tuner.record(clock.now));
+    for (int i = 0; i < 1000; i++) {
+      assertFalse(tuner.record(clock.now));
+    }
+    assertEquals(10, tuner.threshold());
+
+    clock.advance(UploadTuner.BUCKET_MILLIS);
+    assertTrue(tuner.record(clock.now));
+    assertEquals(100, tuner.threshold());
+  }
+
+  @Test
+  public void forgetsOldEventsAfterSilence() {
+    recordEvery(10, UploadTuner.BUCKETS * UploadTuner.BUCKET_MILLIS);
+
+    clock.advance(10 * UploadTuner.BUCKETS * UploadTuner.BUCKET_MILLIS);
+    assertTrue(tuner.record(clock.now));
+
+    assertEquals(0.0, tuner.rate(), 0.0);
+    assertEquals(10, tuner.threshold());
+    assertEquals(10 * 1000, tuner.periodMillis());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsInvertedBounds() {
+    new UploadTuner(100, 10, 10 * 1000, 60 * 1000);
+  }
+
+  private void recordEvery(long intervalMillis, long durationMillis) {
+    long end = clock.now + durationMillis;
+    while (clock.now < end) {
+      tuner.record(clock.now);
+      clock.advance(intervalMillis);
+    }
+    tuner.record(clock.now);
+  }
+}